@@ -30,6 +30,7 @@ import com.beust.jcommander.ParametersDelegate;
 import com.beust.jcommander.converters.CommaParameterSplitter;
 import com.beust.jcommander.converters.IntegerConverter;
 import com.cloudera.science.ml.avro.MLCenters;
+import com.cloudera.science.ml.client.params.IndexParameters;
 import com.cloudera.science.ml.client.params.PipelineParameters;
 import com.cloudera.science.ml.client.params.RecordOutputParameters;
 import com.cloudera.science.ml.client.params.VectorInputParameters;
@@ -47,6 +48,14 @@ public class KMeansAssignmentCommand implements Command {
       description = "The path to write the output to (id, clustering_id, center_id, distance)")
   private String assignmentsPath;
   
+  @Parameter(names = "--approx",
+      description = "Use approximate point assignment (tends to speed up runs at the cost of accuracy)")
+  private boolean approx = false;
+  
+  @Parameter(names = "--centers-per-shard",
+      description = "Split the centers into shards with at most this many centers from each clustering, and compare the points to each shard in its own job, for models that are too large to fit in a single task; the vector ids must be unique (0 never shards the centers)")
+  private int centersPerShard = 0;
+  
   @ParametersDelegate
   private VectorInputParameters inputParams = new VectorInputParameters();
   
@@ -59,14 +68,23 @@ public class KMeansAssignmentCommand implements Command {
   @ParametersDelegate
   private CentersParameters centersParams = new CentersParameters();
 
+  @ParametersDelegate
+  private IndexParameters indexParams = new IndexParameters();
+
   @Override
   public int execute(Configuration conf) throws IOException {
     Pipeline p = pipelineParams.create(KMeansAssignmentCommand.class, conf);
     PCollection<NamedVector> input = inputParams.getVectors(p);
-    KMeansParallel kmp = new KMeansParallel();
+    KMeansParallel kmp = indexParams.create(null);
 
-    Records assigned = kmp.computeClusterAssignments(input,
-        centersParams.getCenters(), centersParams.getCenterIds());
+    Records assigned;
+    if (centersPerShard > 0) {
+      assigned = kmp.computeClusterAssignments(input,
+          centersParams.getCenters(), centersParams.getCenterIds(), approx, centersPerShard);
+    } else {
+      assigned = kmp.computeClusterAssignments(input,
+          centersParams.getCenters(), centersParams.getCenterIds(), approx);
+    }
 
     outputParams.writeRecords(assigned.get(), assigned.getSpec(), assignmentsPath);
     p.done();
@@ -19,10 +19,10 @@ import java.io.IOException;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 
 import org.apache.hadoop.conf.Configuration;
-import org.apache.mahout.math.Vector;
 
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
@@ -34,13 +34,17 @@ import com.cloudera.science.ml.client.params.RandomParameters;
 import com.cloudera.science.ml.client.util.AvroIO;
 import com.cloudera.science.ml.core.vectors.Centers;
 import com.cloudera.science.ml.core.vectors.VectorConvert;
-import com.cloudera.science.ml.core.vectors.Weighted;
+import com.cloudera.science.ml.kmeans.core.Convergence;
+import com.cloudera.science.ml.kmeans.core.ElkanUpdateStrategy;
 import com.cloudera.science.ml.kmeans.core.KMeans;
 import com.cloudera.science.ml.kmeans.core.KMeansInitStrategy;
 import com.cloudera.science.ml.kmeans.core.KMeansEvaluation;
 import com.cloudera.science.ml.kmeans.core.KMeansUpdateStrategy;
+import com.cloudera.science.ml.kmeans.core.KdTreeUpdateStrategy;
 import com.cloudera.science.ml.kmeans.core.LloydsUpdateStrategy;
 import com.cloudera.science.ml.kmeans.core.MiniBatchUpdateStrategy;
+import com.cloudera.science.ml.kmeans.core.PackedPoints;
+import com.cloudera.science.ml.kmeans.core.YinyangUpdateStrategy;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -65,23 +69,35 @@ public class KMeansCommand implements Command {
   private int bestOf = 5;
   
   @Parameter(names = "--init-strategy",
-      description = "The k-means initialization strategy (PLUS_PLUS or RANDOM)")
+      description = "The k-means initialization strategy (PLUS_PLUS, GREEDY_PLUS_PLUS, or RANDOM)")
   private String initStrategyName = KMeansInitStrategy.PLUS_PLUS.name();
 
   @Parameter(names = "--max-iterations",
       description = "The maximum number of k-means iterations to run (either Lloyd's or mini-batch)")
   private int maxIterations = 100;  
 
+  @Parameter(names = "--update-strategy",
+      description = "The Lloyd's update rule to use (LLOYDS, the default, ELKAN, YINYANG, or KDTREE); ELKAN and YINYANG give identical results using fewer distance calculations, YINYANG uses much less memory for large K, and KDTREE is usually fastest on data with few dimensions")
+  private String updateStrategyName = "LLOYDS";
+  
   @Parameter(names = "--mini-batch-size",
       description = "The number of points to include in each mini-batch update (enables mini-batch k-means)")
   private int miniBatchSize = 0;
   
+  @Parameter(names = "--cost-tolerance",
+      description = "Stop iterating once an iteration reduces the clustering cost by less than this fraction")
+  private double costTolerance = 0.0;
+  
+  @Parameter(names = "--shift-tolerance",
+      description = "Stop iterating once the sum of the squared distances the centers moved in an iteration is at most this value")
+  private double shiftTolerance = 0.0;
+  
   @Parameter(names = "--centers-file", required=true,
       description = "A local file to store the centers that were created into")
   private String centersOutputFile;
   
   @Parameter(names = "--num-threads",
-      description = "The number of execution threads to use for running the (computationally intensive) k-means algorithm")
+      description = "The number of execution threads to use for running the (computationally intensive) k-means algorithm, both across and within runs")
   private int numThreads = 1;
   
   @Parameter(names = "--eval-details-file",
@@ -102,9 +118,6 @@ public class KMeansCommand implements Command {
   
   @Override
   public int execute(Configuration conf) throws IOException {
-    KMeansInitStrategy initStrategy = KMeansInitStrategy.valueOf(initStrategyName);
-    KMeans kmeans = new KMeans(initStrategy, getUpdateStrategy());
-    
     ListeningExecutorService exec;
     if (numThreads <= 1) {
       exec = MoreExecutors.listeningDecorator(Executors.newSingleThreadExecutor());
@@ -112,27 +125,26 @@ public class KMeansCommand implements Command {
       exec = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(numThreads));
     }
     
+    KMeansInitStrategy initStrategy = KMeansInitStrategy.valueOf(initStrategyName);
+    // With more than one thread, the seeding and iterations within each run are split across the
+    // same pool that runs the different clusterings
+    Executor runExec = numThreads > 1 ? exec : null;
+    KMeans kmeans = new KMeans(initStrategy, getUpdateStrategy(runExec), runExec);
+    
     List<MLWeightedCenters> mlwc = AvroIO.read(MLWeightedCenters.class, new File(sketchFile));
-    List<List<Weighted<Vector>>> sketches = toSketches(mlwc);
-    List<Weighted<Vector>> allPoints = Lists.newArrayList();
-    for (List<Weighted<Vector>> sketch : sketches) {
-      allPoints.addAll(sketch);
-    }
+    PackedPoints allPoints = PackedPoints.fromSketches(mlwc);
     List<Centers> centers = getClusters(exec, allPoints, kmeans);
     AvroIO.write(Lists.transform(centers, VectorConvert.FROM_CENTERS),
         new File(centersOutputFile));
     
-    if (sketches.size() > 1) {
+    if (mlwc.size() > 1) {
       // Perform the prediction strength calculations on the folds
-      List<Weighted<Vector>> train = Lists.newArrayList();
-      for (int i = 0; i < sketches.size() - 1; i++) {
-        train.addAll(sketches.get(i));
-      }
-      List<Weighted<Vector>> test = sketches.get(sketches.size() - 1);
+      PackedPoints train = PackedPoints.fromSketches(mlwc.subList(0, mlwc.size() - 1));
+      PackedPoints test = PackedPoints.fromSketch(mlwc.get(mlwc.size() - 1));
       List<Centers> trainCenters = getClusters(exec, train, kmeans);
       List<Centers> testCenters = getClusters(exec, test, kmeans);
       KMeansEvaluation eval = new KMeansEvaluation(testCenters, test, trainCenters,
-          detailsFileName);
+          detailsFileName, runExec);
       eval.writeStatsToFile(new File(statsFileName));
       eval.writeStats(System.out);
     }
@@ -141,7 +153,7 @@ public class KMeansCommand implements Command {
   }
   
   private List<Centers> getClusters(ListeningExecutorService exec,
-      List<Weighted<Vector>> sketch,
+      PackedPoints sketch,
       KMeans kmeans) {
     List<ListenableFuture<Centers>> futures = Lists.newArrayList();
     for (Integer nc : clusters) {
@@ -158,30 +170,35 @@ public class KMeansCommand implements Command {
     }
   }
   
-  private static List<List<Weighted<Vector>>> toSketches(List<MLWeightedCenters> mlwc) {
-    List<List<Weighted<Vector>>> base = Lists.newArrayList();
-    for (MLWeightedCenters wc : mlwc) {
-      base.add(Lists.transform(wc.getCenters(), VectorConvert.TO_WEIGHTED_VEC));
-    }
-    return base;
-  }
-  
-  private KMeansUpdateStrategy getUpdateStrategy() {
+  private KMeansUpdateStrategy getUpdateStrategy(Executor exec) {
+    Convergence convergence = Convergence.of(costTolerance, shiftTolerance);
     if (miniBatchSize > 0) {
-      return new MiniBatchUpdateStrategy(maxIterations, miniBatchSize, randomParams.getRandom());
+      if (costTolerance == 0.0 && shiftTolerance == 0.0) {
+        convergence = Convergence.NEVER;
+      }
+      return new MiniBatchUpdateStrategy(maxIterations, miniBatchSize, randomParams.getRandom(),
+          convergence, exec);
+    } else if ("ELKAN".equalsIgnoreCase(updateStrategyName)) {
+      return new ElkanUpdateStrategy(maxIterations, exec, convergence);
+    } else if ("LLOYDS".equalsIgnoreCase(updateStrategyName)) {
+      return new LloydsUpdateStrategy(maxIterations, exec, convergence);
+    } else if ("KDTREE".equalsIgnoreCase(updateStrategyName)) {
+      return new KdTreeUpdateStrategy(maxIterations, convergence);
+    } else if ("YINYANG".equalsIgnoreCase(updateStrategyName)) {
+      return new YinyangUpdateStrategy(maxIterations, exec, convergence);
     } else {
-      return new LloydsUpdateStrategy(maxIterations);
+      throw new CommandException("Unknown update strategy: " + updateStrategyName);
     }
   }
   
   private static class Clustering implements Callable<Centers> {
 
     private final KMeans kmeans;
-    private final List<Weighted<Vector>> sketch;
+    private final PackedPoints sketch;
     private final int numClusters;
     private final Random r;
     
-    Clustering(KMeans kmeans, List<Weighted<Vector>> sketch, int numClusters, Random r) {
+    Clustering(KMeans kmeans, PackedPoints sketch, int numClusters, Random r) {
       this.kmeans = kmeans;
       this.sketch = sketch;
       this.numClusters = numClusters;
@@ -27,13 +27,16 @@ import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
 import com.beust.jcommander.ParametersDelegate;
 import com.cloudera.science.ml.avro.MLWeightedCenters;
+import com.cloudera.science.ml.client.params.IndexParameters;
 import com.cloudera.science.ml.client.params.PipelineParameters;
 import com.cloudera.science.ml.client.params.RandomParameters;
 import com.cloudera.science.ml.client.params.VectorInputParameters;
 import com.cloudera.science.ml.client.util.AvroIO;
 import com.cloudera.science.ml.core.vectors.VectorConvert;
 import com.cloudera.science.ml.core.vectors.Weighted;
+import com.cloudera.science.ml.kmeans.parallel.InitializationOptions;
 import com.cloudera.science.ml.kmeans.parallel.KMeansParallel;
+import com.cloudera.science.ml.kmeans.parallel.SamplingMode;
 import com.cloudera.science.ml.parallel.crossfold.Crossfold;
 import com.google.common.collect.Lists;
 
@@ -49,25 +52,37 @@ public class KMeansSketchCommand implements Command {
   private int crossFolds = 2;
   
   @Parameter(names = "--iterations",
-      description = "The number of iterations of k-means|| to run")
+      description = "The (maximum) number of iterations of k-means|| to run")
   private int numIterations = 5;
   
+  @Parameter(names = "--min-improvement",
+      description = "Stop early once the relative decrease in the cost of every fold from one iteration to the next is less than this value (0 never stops early)")
+  private double minImprovement = 0.0;
+  
+  @Parameter(names = "--max-candidates",
+      description = "Stop early once every fold has at least this many sampled points (0 for no limit)")
+  private int maxCandidates = 0;
+  
   @Parameter(names = "--points-per-iteration", required=true,
       description = "The number of sample points to select on each iteration")
   private int samplesPerIteration;
 
+  @Parameter(names = "--persist-distances",
+      description = "Write out each point's distance to its closest sample between iterations, so that each iteration only compares the points to the newly sampled points")
+  private boolean persistDistances = false;
+  
+  @Parameter(names = "--sampling",
+      description = "How to sample points on each iteration: RESERVOIR takes exactly --points-per-iteration points, while BERNOULLI keeps each point independently (--points-per-iteration on average) in a map-only pass over the scored points")
+  private String sampling = SamplingMode.RESERVOIR.name();
+  
+  @Parameter(names = "--fuse-weights",
+      description = "Count the points closest to the earlier sampled points from the distances computed by the last iteration, and then correct the counts with a pass over the scored points that only compares them to the points sampled on the last iteration. This avoids recomputing the distances to the earlier sampled points, but the scored points are still written out and read back in full")
+  private boolean fuseWeights = false;
+  
   @Parameter(names = "--output-file", required=true,
       description = "A local file to write the sketch output to (as Avro MLWeightedCenters records)")
   private String outputFile;
   
-  @Parameter(names = "--index-bits",
-      description = "The number of bits to use in the centers index data structure")
-  private int indexBits = 128;
-  
-  @Parameter(names = "--index-samples",
-      description = "The number of matching points from the centers index to compare to each vector")
-  private int indexSamples = 32;
-  
   @ParametersDelegate
   private PipelineParameters pipelineParams = new PipelineParameters();
   
@@ -77,6 +92,9 @@ public class KMeansSketchCommand implements Command {
   @ParametersDelegate
   private RandomParameters randomParams = new RandomParameters();
   
+  @ParametersDelegate
+  private IndexParameters indexParams = new IndexParameters();
+  
   @Override
   public int execute(Configuration conf) throws IOException {
     Pipeline p = pipelineParams.create(KMeansSketchCommand.class, conf);
@@ -90,12 +108,19 @@ public class KMeansSketchCommand implements Command {
       initial = Lists.newArrayList();
       initial.add(input.materialize().iterator().next());
     }
-    KMeansParallel kmp = new KMeansParallel(randomParams.getRandom(), indexBits,
-        indexSamples);
+    KMeansParallel kmp = indexParams.create(randomParams.getRandom());
     Crossfold cf = new Crossfold(crossFolds);
     
+    InitializationOptions.Builder options = InitializationOptions.builder()
+        .persistDistances(persistDistances)
+        .sampling(SamplingMode.valueOf(sampling))
+        .fuseWeights(fuseWeights)
+        .minImprovement(minImprovement);
+    if (maxCandidates > 0) {
+      options.maxCandidates(maxCandidates);
+    }
     List<List<Weighted<Vector>>> wv = kmp.initialization(input,
-        numIterations, samplesPerIteration, initial, cf);
+        numIterations, samplesPerIteration, initial, cf, options.build());
     AvroIO.write(toWeightedCenters(wv), new File(outputFile));
     p.done();
     
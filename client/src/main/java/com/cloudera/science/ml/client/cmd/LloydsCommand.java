@@ -29,6 +29,7 @@ import com.beust.jcommander.ParametersDelegate;
 import com.beust.jcommander.converters.CommaParameterSplitter;
 import com.beust.jcommander.converters.IntegerConverter;
 import com.cloudera.science.ml.avro.MLCenters;
+import com.cloudera.science.ml.client.params.IndexParameters;
 import com.cloudera.science.ml.client.params.PipelineParameters;
 import com.cloudera.science.ml.client.params.VectorInputParameters;
 import com.cloudera.science.ml.client.util.AvroIO;
@@ -64,15 +65,22 @@ public class LloydsCommand implements Command {
   private boolean approx = false;
   
   @Parameter(names = "--compute-costs",
-      description = "If true, calculates and prints the cost of the new output clusters")
+      description = "If true, calculates and prints the cost of the new output clusters (requires one more map-only pass over the data after the last iteration)")
   private boolean computeCosts = false;
   
+  @Parameter(names = "--cost-history",
+      description = "If true, prints the cost of the clusters at the start of each iteration, which is computed along with the iteration itself")
+  private boolean costHistory = false;
+  
   @ParametersDelegate
   private VectorInputParameters inputParams = new VectorInputParameters();
   
   @ParametersDelegate
   private PipelineParameters pipelineParams = new PipelineParameters();
   
+  @ParametersDelegate
+  private IndexParameters indexParams = new IndexParameters();
+  
   @Override
   public int execute(Configuration conf) throws IOException {
     Pipeline p = pipelineParams.create(KMeansAssignmentCommand.class, conf);
@@ -86,11 +94,25 @@ public class LloydsCommand implements Command {
       mlCenters = filter;
     }
     
-    KMeansParallel kmp = new KMeansParallel();
+    KMeansParallel kmp = indexParams.create(null);
     List<Centers> initial = Lists.transform(mlCenters, VectorConvert.TO_CENTERS);
-    List<Centers> output = kmp.lloydsAlgorithm(input, initial, numIterations, approx);
+    List<List<Double>> history = costHistory || computeCosts ?
+        Lists.<List<Double>>newArrayList() : null;
+    List<Centers> output = kmp.lloydsAlgorithm(input, initial, numIterations, approx, history,
+        computeCosts);
+    if (costHistory) {
+      System.out.println("Iteration,CenterId,Cost");
+      // When the costs of the output centers are computed, they are the last entry
+      for (int iter = 0; iter < history.size(); iter++) {
+        List<Double> costs = history.get(iter);
+        for (int i = 0; i < costs.size(); i++) {
+          int centerId = centerIds.isEmpty() ? i : centerIds.get(i);
+          System.out.println(String.format("%d,%d,%.4f", iter, centerId, costs.get(i)));
+        }
+      }
+    }
     if (computeCosts) {
-      List<Double> costs = kmp.getCosts(input, output, approx).getValue();
+      List<Double> costs = history.get(history.size() - 1);
       System.out.println("CenterId,Cost");
       for (int i = 0; i < costs.size(); i++) {
         int centerId = centerIds.isEmpty() ? i : centerIds.get(i);
@@ -0,0 +1,57 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.client.params;
+
+import java.util.Random;
+
+import com.beust.jcommander.Parameter;
+import com.cloudera.science.ml.kmeans.parallel.KMeansParallel;
+import com.cloudera.science.ml.kmeans.parallel.RandomProjection;
+
+/**
+ * Handles parameters related to the index used for approximate assignment of points
+ * to centers in the k-means|| commands.
+ */
+public class IndexParameters {
+  @Parameter(names = "--index-bits",
+      description = "The number of bits to use in the centers index data structure")
+  private int indexBits = 128;
+
+  @Parameter(names = "--index-samples",
+      description = "The number of matching points from the centers index to compare to each vector")
+  private int indexSamples = 32;
+
+  @Parameter(names = "--index-tables",
+      description = "The number of hash tables to split the index bits into for multi-probe lookups (0 compares every center's bits)")
+  private int indexTables = 0;
+
+  @Parameter(names = "--index-probes",
+      description = "The number of neighboring buckets to look in for each of the index hash tables")
+  private int indexProbes = 4;
+
+  @Parameter(names = "--index-projection",
+      description = "The kind of random projection used for the index bits (GAUSSIAN, SPARSE, or HADAMARD); SPARSE and HADAMARD are much faster for vectors with many dimensions")
+  private String indexProjection = RandomProjection.GAUSSIAN.name();
+
+  /**
+   * Creates a {@code KMeansParallel} instance that uses these index settings.
+   *
+   * @param random The source of randomness, or null to use the current time as the seed
+   */
+  public KMeansParallel create(Random random) {
+    return new KMeansParallel(random, indexBits, indexSamples, indexTables, indexProbes,
+        RandomProjection.valueOf(indexProjection));
+  }
+}
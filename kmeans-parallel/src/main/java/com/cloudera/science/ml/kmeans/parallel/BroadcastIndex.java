@@ -0,0 +1,170 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.kmeans.parallel;
+
+import com.google.common.base.Preconditions;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.crunch.CrunchRuntimeException;
+import org.apache.crunch.util.DistCache;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * A handle on a {@link CentersIndex} that is shipped to the tasks of a job as a file in the
+ * distributed cache, instead of as part of the serialized state of the {@code DoFn}s that use
+ * it, which is copied into the job configuration and deserialized by every task.
+ *
+ * <p>The file is the flat binary layout that is written by {@link CentersIndex#write}, and it
+ * is memory-mapped read-only by the tasks, so loading it is a bulk copy of each of its arrays
+ * out of the page cache that is shared by every task on the node. Each file is only loaded
+ * once per JVM, and the index that is loaded is read-only, so the tasks that run in a reused
+ * JVM (or in the threads of a multithreaded mapper) can all share it.
+ *
+ * <p>The file is written to the working directory of the job, which is under the temporary
+ * directory of the pipeline, so it is deleted along with the rest of that directory when
+ * the pipeline is cleaned up.
+ */
+final class BroadcastIndex implements Serializable {
+
+  // Set by the MapReduce planner to a new directory under the pipeline's temporary directory
+  // for each job, before the DoFns of the job are configured
+  private static final String WORKING_DIRECTORY = "crunch.work.dir";
+
+  // The number of indices that are kept around in each JVM after they are loaded
+  private static final int MAX_LOADED = 4;
+
+  private static final Map<String, CentersIndex> LOADED =
+      new LinkedHashMap<String, CentersIndex>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CentersIndex> eldest) {
+          return size() > MAX_LOADED;
+        }
+      };
+
+  private transient CentersIndex index;
+  private String path;
+
+  BroadcastIndex(CentersIndex index) {
+    this.index = index;
+  }
+
+  /**
+   * Writes the index out to the working directory of the job with the given configuration,
+   * unless it was already written there, and adds that file to the distributed cache of the
+   * job. This is called on the client from {@code DoFn.configure}, once for each job that the
+   * {@code DoFn} runs in, so the file is always there for the job even if the {@code DoFn} is
+   * reused by a later job or pipeline.
+   */
+  void configure(Configuration conf) {
+    String workingDirectory = conf.get(WORKING_DIRECTORY);
+    Preconditions.checkState(workingDirectory != null,
+        "No working directory for the job has been set in %s", WORKING_DIRECTORY);
+    try {
+      Path dir = new Path(workingDirectory);
+      FileSystem fs = dir.getFileSystem(conf);
+      if (path == null || !new Path(path).getParent().equals(fs.makeQualified(dir))) {
+        Path p = new Path(dir, "centers-index-" + UUID.randomUUID().toString());
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fs.create(p)));
+        try {
+          index.write(out);
+        } finally {
+          out.close();
+        }
+        this.path = fs.makeQualified(p).toString();
+      }
+      DistCache.addCacheFile(new Path(path), conf);
+    } catch (IOException e) {
+      throw new CrunchRuntimeException(e);
+    }
+  }
+
+  /**
+   * Returns the index, loading it from the distributed cache the first time that it is
+   * used in this JVM.
+   */
+  CentersIndex get(Configuration conf) {
+    if (index == null) {
+      synchronized (LOADED) {
+        index = LOADED.get(path);
+        if (index == null) {
+          index = CentersIndex.read(map(conf));
+          LOADED.put(path, index);
+        }
+      }
+    }
+    return index;
+  }
+
+  /**
+   * Maps the local copy of the file from the distributed cache, or reads the whole file into
+   * memory if it is not on the local file system.
+   */
+  // DistributedCache is deprecated in favor of the methods on JobContext, but a DoFn only
+  // has the Configuration of its task, and this is the only way to get the local paths of
+  // the cache files from it in the versions of Hadoop that Crunch supports.
+  @SuppressWarnings("deprecation")
+  private ByteBuffer map(Configuration conf) {
+    try {
+      Path p = new Path(path);
+      FileSystem fs = p.getFileSystem(conf);
+      Path[] localFiles = org.apache.hadoop.filecache.DistributedCache.getLocalCacheFiles(conf);
+      if (localFiles != null) {
+        for (Path local : localFiles) {
+          if (local.getName().equals(p.getName())) {
+            p = local;
+            fs = FileSystem.getLocal(conf);
+            break;
+          }
+        }
+      }
+      if (fs instanceof LocalFileSystem) {
+        File file = ((LocalFileSystem) fs).pathToFile(p);
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+          FileChannel channel = raf.getChannel();
+          // The mapping stays valid after the file is closed
+          return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+          raf.close();
+        }
+      }
+      byte[] bytes = new byte[(int) fs.getFileStatus(p).getLen()];
+      FSDataInputStream in = fs.open(p);
+      try {
+        in.readFully(bytes);
+      } finally {
+        in.close();
+      }
+      return ByteBuffer.wrap(bytes);
+    } catch (IOException e) {
+      throw new CrunchRuntimeException(e);
+    }
+  }
+}
@@ -17,38 +17,133 @@ package com.cloudera.science.ml.kmeans.parallel;
 import com.cloudera.science.ml.core.vectors.Centers;
 import com.cloudera.science.ml.core.vectors.Vectors;
 import com.cloudera.science.ml.core.vectors.Weighted;
+import com.cloudera.science.ml.kmeans.parallel.RandomProjection.Projector;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Sets;
 
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
-import java.util.BitSet;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Random;
-import java.util.SortedSet;
 
 import org.apache.mahout.math.Vector;
 
 /**
  * An internal data structure that manages the locations of the current centers during
  * k-means|| processing.
+ *
+ * <p>The centers of each clustering are stored in a single row-major {@code double[]}, along
+ * with their squared lengths and their packed random-projection signatures, all of which
+ * grow geometrically as centers are added. The signatures are only computed for the
+ * centers that were added since the last approximate lookup.
+ *
+ * <p>By default, an approximate lookup compares the query's signature to the signature of
+ * every center and computes the exact distance to the {@code projectionSamples} closest
+ * ones. If a number of hash tables is given, the signatures are also split into keys for a
+ * set of {@link ProbeTables}, and only the centers in the buckets that the query probes are
+ * compared, falling back to the full scan if all of those buckets are empty.
+ *
+ * <p>Exact lookups visit the centers in order of how close their norms are to the query's,
+ * and stop once the difference in norms alone rules out the rest. For dense queries, the
+ * dot product with each center is computed in blocks of dimensions, and abandoned as soon
+ * as a bound on the rest of it shows that the center cannot be the closest one. The
+ * results are identical to comparing the query to every center.
+ *
+ * <p>An index can be written out as a flat binary file with {@link #write(DataOutput)}, after
+ * sorting and indexing all of its centers, and read back with {@link #read(ByteBuffer)}. The
+ * index that is read back is read-only: none of its lookups change it, so it can be shared
+ * between threads.
  */
 class CentersIndex implements Serializable {
+
+  private static final int INITIAL_CAPACITY = 16;
+  // Keeps the buckets of each table small enough to be worth probing
+  private static final int MAX_KEY_BITS = 12;
+  private static final int BLOCK_SIZE = 32;
+  // The number of centers and dimensions in each tile of a batched lookup
+  private static final int TILE_CENTERS = 8;
+  private static final int TILE_DIMENSIONS = 256;
+  // Relative slack applied to the pruning bounds so that rounding error never prunes a
+  // center that an exhaustive search would have chosen
+  private static final double SLACK = 1.0e-9;
+  // Identifies the files written by write(DataOutput), and the version of their layout
+  private static final int MAGIC = 0x43494458;
+  private static final int VERSION = 1;
+
   private final int[] pointsPerCenter;
-  private final List<List<BitSet>> indices;
-  private final List<List<double[]>> points;
-  private final List<List<Double>> lengthSquared;
+  private final double[][] points;
+  private final double[][] lengthSquared;
+  // The norm of the trailing part of each center, starting at each block of dimensions
+  private final double[][] tails;
+  // The indices of the centers in each clustering, in ascending order of their norms
+  private final int[][] normOrder;
+  // The number of centers in each clustering that have been put in norm order
+  private final int[] numSorted;
+  private final int numBlocks;
+  // The packed signature bits of every center in each clustering, stored back to back
+  private final long[][] indices;
+  // The number of centers in each clustering that have signatures
+  private final int[] numIndexed;
   private final int dimensions;
   private final int projectionBits;
   private final int projectionSamples;
+  private final RandomProjection projectionType;
   private final long seed;
+  // The multi-probe hash tables for each clustering, or null if they are not used
+  private final ProbeTables[] tables;
+  // Whether the index was read from a file, in which case centers cannot be added to it
+  private final boolean readOnly;
   
-  private double[] projection;
-  private boolean updated;
+  // Regenerated from the seed when needed, so that it is not serialized
+  private transient Projector projector;
+  
+  /**
+   * The buffers that approximate lookups use to collect the candidates from the hash tables.
+   * They are owned by the caller and reused from one lookup to the next, so that a lookup
+   * doesn't have to allocate and clear arrays as long as the number of centers. Each caller
+   * (e.g., each {@code DoFn} instance) needs its own.
+   */
+  public static final class Scratch {
+    private int[] candidates = new int[0];
+    // The marks for each clustering, which hold the stamp of the last query that found
+    // each center
+    private int[][] marks;
+    private int stamp;
+
+    private int nextStamp(int numClusterings) {
+      if (marks == null || marks.length != numClusterings || stamp == Integer.MAX_VALUE) {
+        marks = new int[numClusterings][];
+        stamp = 0;
+      }
+      return ++stamp;
+    }
+
+    private int[] candidates(int size) {
+      if (candidates.length < size) {
+        candidates = new int[Math.max(size, 2 * candidates.length)];
+      }
+      return candidates;
+    }
+
+    private int[] marks(int clustering, int size) {
+      int[] m = marks[clustering];
+      if (m == null || m.length < size) {
+        // Stamps start at one, so the new entries never match a stamp
+        m = new int[Math.max(size, m == null ? 0 : 2 * m.length)];
+        marks[clustering] = m;
+      }
+      return m;
+    }
+  }
   
   public static class Distances {
     public double[] clusterDistances;
     public int[] closestPoints;
+    // The number of centers that an exact lookup did not have to fully compare
+    public int prunedCenters;
     
     public Distances(double[] clusterDistances, int[] closestPoints) {
       this.clusterDistances = clusterDistances;
@@ -62,18 +157,58 @@ class CentersIndex implements Serializable {
   
   CentersIndex(int numClusterings, int dimensions, int projectionBits, int projectionSamples,
       long seed) {
+    this(numClusterings, dimensions, projectionBits, projectionSamples, 0, 0,
+        RandomProjection.GAUSSIAN, seed);
+  }
+  
+  /**
+   * Creates an index that uses multi-probe hash tables for its approximate lookups.
+   *
+   * @param numClusterings The number of clusterings to keep centers for
+   * @param dimensions The dimension of the centers
+   * @param projectionBits The number of random projections in each signature
+   * @param projectionSamples The number of closest signatures to compare when scanning
+   * @param numTables The number of hash tables, each keyed on a separate part of the
+   *     signatures, or zero to always scan every signature
+   * @param numProbes The number of neighboring buckets to probe in each table
+   * @param projectionType The kind of random projection used to compute the signatures
+   * @param seed The seed for the random projections
+   */
+  CentersIndex(int numClusterings, int dimensions, int projectionBits, int projectionSamples,
+      int numTables, int numProbes, RandomProjection projectionType, long seed) {
+    Preconditions.checkArgument(numTables >= 0 && numTables <= projectionBits,
+        "Number of tables must be between 0 and the number of projection bits");
+    Preconditions.checkArgument(numProbes >= 0, "Number of probes must be non-negative");
     this.pointsPerCenter = new int[numClusterings];
-    this.indices = Lists.newArrayList();
-    this.points = Lists.newArrayList();
-    this.lengthSquared = Lists.newArrayList();
-    for (int i = 0; i < numClusterings; i++) {
-      points.add(Lists.<double[]>newArrayList());
-      lengthSquared.add(Lists.<Double>newArrayList());
-    }
+    this.points = new double[numClusterings][];
+    this.lengthSquared = new double[numClusterings][];
+    this.indices = new long[numClusterings][];
+    this.numIndexed = new int[numClusterings];
+    this.tails = new double[numClusterings][];
+    this.normOrder = new int[numClusterings][];
+    this.numSorted = new int[numClusterings];
+    this.numBlocks = (dimensions + BLOCK_SIZE - 1) / BLOCK_SIZE;
     this.dimensions = dimensions;
     this.projectionBits = projectionBits;
     this.projectionSamples = projectionSamples;
+    this.projectionType = projectionType;
     this.seed = seed;
+    for (int i = 0; i < numClusterings; i++) {
+      points[i] = new double[INITIAL_CAPACITY * dimensions];
+      lengthSquared[i] = new double[INITIAL_CAPACITY];
+      tails[i] = new double[INITIAL_CAPACITY * numBlocks];
+      indices[i] = new long[INITIAL_CAPACITY * signatureWords()];
+    }
+    if (numTables > 0) {
+      int keyBits = Math.min(projectionBits / numTables, MAX_KEY_BITS);
+      this.tables = new ProbeTables[numClusterings];
+      for (int i = 0; i < numClusterings; i++) {
+        tables[i] = new ProbeTables(numTables, keyBits, numProbes);
+      }
+    } else {
+      this.tables = null;
+    }
+    this.readOnly = false;
   }
   
   CentersIndex(List<Centers> centers) {
@@ -81,7 +216,13 @@ class CentersIndex implements Serializable {
   }
   
   CentersIndex(List<Centers> centers, int projectionBits, int projectionSamples, long seed) {
-    this(centers.size(), centers.get(0).get(0).size(), projectionBits, projectionSamples, seed);
+    this(centers, projectionBits, projectionSamples, 0, 0, RandomProjection.GAUSSIAN, seed);
+  }
+  
+  CentersIndex(List<Centers> centers, int projectionBits, int projectionSamples,
+      int numTables, int numProbes, RandomProjection projectionType, long seed) {
+    this(centers.size(), centers.get(0).get(0).size(), projectionBits, projectionSamples,
+        numTables, numProbes, projectionType, seed);
     for (int centerId = 0; centerId < centers.size(); centerId++) {
       for (Vector v : centers.get(centerId)) {
         add(v, centerId);
@@ -89,6 +230,124 @@ class CentersIndex implements Serializable {
     }
   }
   
+  /**
+   * Reads an index from a buffer that holds the contents of a file that was written by
+   * {@link #write(DataOutput)}. Every array of the index is copied out of the buffer with a
+   * single bulk read, so nothing is deserialized or recomputed.
+   */
+  static CentersIndex read(ByteBuffer buf) {
+    return new CentersIndex(buf);
+  }
+
+  private CentersIndex(ByteBuffer buf) {
+    Preconditions.checkArgument(buf.getInt() == MAGIC, "Not a centers index file");
+    int version = buf.getInt();
+    Preconditions.checkArgument(version == VERSION,
+        "Unsupported centers index version: %s", version);
+    int numClusterings = buf.getInt();
+    this.dimensions = buf.getInt();
+    this.projectionBits = buf.getInt();
+    this.projectionSamples = buf.getInt();
+    this.projectionType = RandomProjection.values()[buf.getInt()];
+    this.seed = buf.getLong();
+    boolean hasTables = buf.getInt() != 0;
+    this.numBlocks = (dimensions + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    this.pointsPerCenter = getInts(buf, numClusterings);
+    this.points = new double[numClusterings][];
+    this.lengthSquared = new double[numClusterings][];
+    this.tails = new double[numClusterings][];
+    this.normOrder = new int[numClusterings][];
+    this.indices = new long[numClusterings][];
+    this.tables = hasTables ? new ProbeTables[numClusterings] : null;
+    int words = signatureWords();
+    for (int i = 0; i < numClusterings; i++) {
+      int size = pointsPerCenter[i];
+      points[i] = getDoubles(buf, size * dimensions);
+      lengthSquared[i] = getDoubles(buf, size);
+      tails[i] = getDoubles(buf, size * numBlocks);
+      normOrder[i] = getInts(buf, size);
+      indices[i] = getLongs(buf, size * words);
+      if (hasTables) {
+        tables[i] = new ProbeTables(buf);
+      }
+    }
+    // Everything was sorted and indexed before it was written out
+    this.numSorted = pointsPerCenter.clone();
+    this.numIndexed = pointsPerCenter.clone();
+    this.projector = projectionType.create(dimensions, projectionBits, seed);
+    this.readOnly = true;
+  }
+
+  private static double[] getDoubles(ByteBuffer buf, int length) {
+    double[] values = new double[length];
+    buf.asDoubleBuffer().get(values);
+    buf.position(buf.position() + 8 * length);
+    return values;
+  }
+
+  private static int[] getInts(ByteBuffer buf, int length) {
+    int[] values = new int[length];
+    buf.asIntBuffer().get(values);
+    buf.position(buf.position() + 4 * length);
+    return values;
+  }
+
+  private static long[] getLongs(ByteBuffer buf, int length) {
+    long[] values = new long[length];
+    buf.asLongBuffer().get(values);
+    buf.position(buf.position() + 8 * length);
+    return values;
+  }
+
+  /**
+   * Sorts and indexes every center, and then writes the index out in the layout that is
+   * read by {@link #read(ByteBuffer)}: a header with the settings of the index and the
+   * number of centers in each clustering, followed by the flat arrays for each clustering.
+   */
+  void write(DataOutput out) throws IOException {
+    int words = signatureWords();
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(pointsPerCenter.length);
+    out.writeInt(dimensions);
+    out.writeInt(projectionBits);
+    out.writeInt(projectionSamples);
+    out.writeInt(projectionType.ordinal());
+    out.writeLong(seed);
+    out.writeInt(tables != null ? 1 : 0);
+    for (int size : pointsPerCenter) {
+      out.writeInt(size);
+    }
+    for (int i = 0; i < pointsPerCenter.length; i++) {
+      int size = pointsPerCenter[i];
+      if (numSorted[i] < size) {
+        sortByNorm(i);
+      }
+      if (numIndexed[i] < size) {
+        updateIndex(i);
+      }
+      writeDoubles(out, points[i], size * dimensions);
+      writeDoubles(out, lengthSquared[i], size);
+      writeDoubles(out, tails[i], size * numBlocks);
+      for (int j = 0; j < size; j++) {
+        out.writeInt(normOrder[i][j]);
+      }
+      for (int j = 0; j < size * words; j++) {
+        out.writeLong(indices[i][j]);
+      }
+      if (tables != null) {
+        tables[i].write(out);
+      }
+    }
+  }
+
+  private static void writeDoubles(DataOutput out, double[] values, int length)
+      throws IOException {
+    for (int i = 0; i < length; i++) {
+      out.writeDouble(values[i]);
+    }
+  }
+
   public int getNumCenters() {
     return pointsPerCenter.length;
   }
@@ -97,181 +356,534 @@ class CentersIndex implements Serializable {
     return pointsPerCenter;
   }
   
-  private void buildIndices() {
-    if (projection == null) {
-      Random r = new Random(seed);
-      this.projection = new double[dimensions * projectionBits];
-      for (int i = 0; i < projection.length; i++) {
-        projection[i] = r.nextGaussian();
-      }
+  public int getDimensions() {
+    return dimensions;
+  }
+  
+  long getSeed() {
+    return seed;
+  }
+  
+  private int signatureWords() {
+    return (projectionBits + 63) >>> 6;
+  }
+  
+  private Projector getProjector() {
+    if (projector == null) {
+      projector = projectionType.create(dimensions, projectionBits, seed);
+    }
+    return projector;
+  }
+  
+  /**
+   * Computes the signatures of any centers in the given clustering that were added
+   * since the last time it was called.
+   */
+  private void updateIndex(int centerId) {
+    int size = pointsPerCenter[centerId];
+    int words = signatureWords();
+    if (indices[centerId].length < size * words) {
+      indices[centerId] = Arrays.copyOf(indices[centerId], points[centerId].length / dimensions * words);
     }
-    indices.clear();
-    for (List<double[]> px : points) {
-      List<BitSet> indx = Lists.newArrayList();
-      for (double[] aPx : px) {
-        indx.add(index(Vectors.of(aPx)));
+    for (int j = numIndexed[centerId]; j < size; j++) {
+      pack(project(Vectors.of(row(centerId, j))), indices[centerId], j * words);
+      if (tables != null) {
+        tables[centerId].add(indices[centerId], j * words);
       }
-      indices.add(indx);
     }
-    updated = false;
+    numIndexed[centerId] = size;
   }
   
-  public void add(Vector vec, int centerId) {
-    points.get(centerId).add(Vectors.toArray(vec));
-    lengthSquared.get(centerId).add(vec.getLengthSquared());
-    pointsPerCenter[centerId]++;
-    updated = true;
+  private double[] row(int centerId, int j) {
+    return Arrays.copyOfRange(points[centerId], j * dimensions, (j + 1) * dimensions);
   }
   
-  private BitSet index(Vector vec) {
-    double[] prod = new double[projectionBits];
+  public void add(Vector vec, int centerId) {
+    Preconditions.checkState(!readOnly,
+        "Cannot add centers to an index that was read from a file");
+    int size = pointsPerCenter[centerId];
+    if (size == lengthSquared[centerId].length) {
+      int capacity = 2 * size;
+      points[centerId] = Arrays.copyOf(points[centerId], capacity * dimensions);
+      lengthSquared[centerId] = Arrays.copyOf(lengthSquared[centerId], capacity);
+      tails[centerId] = Arrays.copyOf(tails[centerId], capacity * numBlocks);
+    }
+    double[] rows = points[centerId];
+    int offset = size * dimensions;
     if (vec.isDense()) {
-      for (int i = 0; i < vec.size(); i++) {
-        double v = vec.getQuick(i);
-        if (v != 0.0) {
-          for (int j = 0; j < projectionBits; j++) {
-            prod[j] += v * projection[i + j * dimensions];
-          }
-        }
+      for (int i = 0; i < dimensions; i++) {
+        rows[offset + i] = vec.getQuick(i);
       }
     } else {
       Iterator<Vector.Element> iter = vec.iterateNonZero();
       while (iter.hasNext()) {
         Vector.Element e = iter.next();
-        for (int j = 0; j < projectionBits; j++) {
-          prod[j] += e.get() * projection[e.index() + j * dimensions];
+        rows[offset + e.index()] = e.get();
+      }
+    }
+    lengthSquared[centerId][size] = vec.getLengthSquared();
+    computeTails(rows, offset, tails[centerId], size * numBlocks);
+    pointsPerCenter[centerId]++;
+  }
+  
+  private void computeTails(double[] values, int offset, double[] out, int outOffset) {
+    double sum = 0.0;
+    for (int b = numBlocks - 1; b >= 0; b--) {
+      for (int i = b * BLOCK_SIZE; i < Math.min((b + 1) * BLOCK_SIZE, dimensions); i++) {
+        sum += values[offset + i] * values[offset + i];
+      }
+      out[outOffset + b] = Math.sqrt(sum);
+    }
+  }
+  
+  /**
+   * Sorts the indices of the centers in the given clustering by their norms.
+   */
+  private void sortByNorm(int centerId) {
+    int size = pointsPerCenter[centerId];
+    int[] order = new int[size];
+    for (int j = 0; j < size; j++) {
+      order[j] = j;
+    }
+    sort(order, lengthSquared[centerId], 0, size - 1);
+    normOrder[centerId] = order;
+    numSorted[centerId] = size;
+  }
+  
+  private static void sort(int[] order, double[] keys, int lo, int hi) {
+    while (lo < hi) {
+      double pivot = keys[order[(lo + hi) >>> 1]];
+      int a = lo;
+      int b = hi;
+      while (a <= b) {
+        while (keys[order[a]] < pivot) {
+          a++;
+        }
+        while (keys[order[b]] > pivot) {
+          b--;
+        }
+        if (a <= b) {
+          int tmp = order[a];
+          order[a++] = order[b];
+          order[b--] = tmp;
         }
       }
+      // Recurse into the smaller half to bound the stack depth
+      if (b - lo < hi - a) {
+        sort(order, keys, lo, b);
+        lo = a;
+      } else {
+        sort(order, keys, a, hi);
+        hi = b;
+      }
     }
-    BitSet bitset = new BitSet(projectionBits);
+  }
+  
+  private double[] project(Vector vec) {
+    return getProjector().project(vec);
+  }
+  
+  private void pack(double[] prod, long[] signature, int offset) {
     for (int i = 0; i < projectionBits; i++) {
       if (prod[i] > 0.0) {
-        bitset.set(i);
+        signature[offset + (i >>> 6)] |= 1L << (i & 63);
       }
     }
-    return bitset;
   }
   
   public Distances getDistances(Vector vec, boolean approx) {
+    return getDistances(vec, approx, new Scratch());
+  }
+  
+  /**
+   * Computes the distances from the given vector to the closest center in each clustering,
+   * using the given buffers for the approximate lookups.
+   */
+  public Distances getDistances(Vector vec, boolean approx, Scratch scratch) {
     int[] closestPoints = new int[pointsPerCenter.length];
     double[] distances = new double[pointsPerCenter.length];
+    Query query = new Query(vec, dimensions);
+    double vecLengthSquared = query.lengthSquared;
+    int pruned = 0;
     
     if (approx) {
-      if (updated) {
-        buildIndices();
-      }
-      
-      BitSet q = index(vec);
+      int words = signatureWords();
+      double[] prod = project(vec);
+      long[] q = new long[words];
+      pack(prod, q, 0);
+      long[] heap = new long[projectionSamples];
+      // One stamp for the whole query, so the marks never need to be cleared
+      int stamp = tables != null ? scratch.nextStamp(pointsPerCenter.length) : 0;
       for (int i = 0; i < pointsPerCenter.length; i++) {
-        List<BitSet> index = indices.get(i);
-        SortedSet<Idx> lookup = Sets.newTreeSet();
-        for (int j = 0; j < index.size(); j++) {
-          Idx idx = new Idx(hammingDistance(q, index.get(j)), j);
-          if (lookup.size() < projectionSamples) {
-            lookup.add(idx);
-          } else if (idx.compareTo(lookup.last()) < 0) {
-            lookup.add(idx);
-            lookup.remove(lookup.last());
+        if (numIndexed[i] < pointsPerCenter[i]) {
+          updateIndex(i);
+        }
+        double[] p = points[i];
+        double[] lsq = lengthSquared[i];
+        distances[i] = Double.POSITIVE_INFINITY;
+        if (tables != null) {
+          int[] candidates = scratch.candidates(pointsPerCenter[i]);
+          int found = tables[i].probe(prod, candidates, scratch.marks(i, pointsPerCenter[i]),
+              stamp);
+          for (int c = 0; c < found; c++) {
+            int j = candidates[c];
+            double d = vecLengthSquared + lsq[j] - 2 * query.dot(p, j * dimensions);
+            if (d < distances[i] || (d == distances[i] && j < closestPoints[i])) {
+              distances[i] = d;
+              closestPoints[i] = j;
+            }
+          }
+          if (found > 0) {
+            continue;
+          }
+        }
+        long[] index = indices[i];
+        // A bounded max-heap of the closest signatures, each packed into a long as the
+        // Hamming distance followed by the index of the center
+        int size = 0;
+        for (int j = 0; j < pointsPerCenter[i]; j++) {
+          long key = ((long) hammingDistance(q, index, j * words) << 32) | j;
+          if (size < heap.length) {
+            siftUp(heap, size++, key);
+          } else if (key < heap[0]) {
+            siftDown(heap, size, key);
           }
         }
 
-        List<double[]> p = points.get(i);
-        distances[i] = Double.POSITIVE_INFINITY;
-        for (Idx idx : lookup) {
-          double lenSq = lengthSquared.get(i).get(idx.index);
-          double d = vec.getLengthSquared() + lenSq - 2 * dot(vec, p.get(idx.index));
-          if (d < distances[i]) {
+        for (int h = 0; h < size; h++) {
+          int j = (int) heap[h];
+          double d = vecLengthSquared + lsq[j] - 2 * query.dot(p, j * dimensions);
+          if (d < distances[i] || (d == distances[i] && j < closestPoints[i])) {
             distances[i] = d;
-            closestPoints[i] = idx.index;
+            closestPoints[i] = j;
           }
         }
       }
     } else { // More expensive exact computation
+      double[] xTails = null;
+      if (query.values != null && numBlocks > 1) {
+        xTails = new double[numBlocks];
+        computeTails(query.values, 0, xTails, 0);
+      }
       for (int i = 0; i < pointsPerCenter.length; i++) {
-        distances[i] = Double.POSITIVE_INFINITY;
-        List<double[]> px = points.get(i);
-        List<Double> lsq = lengthSquared.get(i);
-        for (int j = 0; j < px.size(); j++) {
-          double[] p = px.get(j);
-          double lenSq = lsq.get(j);
-          double d = vec.getLengthSquared() + lenSq - 2 * dot(vec, p);
-          if (d < distances[i]) {
-            distances[i] = d;
-            closestPoints[i] = j;
-          }
+        if (numSorted[i] < pointsPerCenter[i]) {
+          sortByNorm(i);
         }
+        pruned += closest(i, query, xTails, distances, closestPoints);
       }
     }
     
-    return new Distances(distances, closestPoints);
+    Distances d = new Distances(distances, closestPoints);
+    d.prunedCenters = pruned;
+    return d;
   }
   
-  static class Idx implements Comparable<Idx> {
-    private final int distance;
-    private final int index;
-    
-    Idx(int distance, int index) {
-      this.distance = distance;
-      this.index = index;
+  /**
+   * Finds the closest center to the query in the given clustering, starting from the
+   * center whose norm is closest to the query's and working outwards in both directions.
+   * 
+   * @return The number of centers that were pruned
+   */
+  private int closest(int i, Query query, double[] xTails, double[] distances,
+      int[] closestPoints) {
+    double vecLengthSquared = query.lengthSquared;
+    int size = pointsPerCenter[i];
+    int[] order = normOrder[i];
+    double[] lsq = lengthSquared[i];
+    double norm = Math.sqrt(vecLengthSquared);
+    int hi = 0;
+    int top = size;
+    while (hi < top) {
+      int mid = (hi + top) >>> 1;
+      if (lsq[order[mid]] < vecLengthSquared) {
+        hi = mid + 1;
+      } else {
+        top = mid;
+      }
     }
-
-    @Override
-    public int compareTo(Idx idx) {
-      if (distance < idx.distance) {
-        return -1;
+    int lo = hi - 1;
+    double best = Double.POSITIVE_INFINITY;
+    int bestIndex = 0;
+    int compared = 0;
+    while (lo >= 0 || hi < size) {
+      double loGap = lo >= 0 ? norm - Math.sqrt(lsq[order[lo]]) : Double.POSITIVE_INFINITY;
+      double hiGap = hi < size ? Math.sqrt(lsq[order[hi]]) - norm : Double.POSITIVE_INFINITY;
+      int j = loGap <= hiGap ? order[lo--] : order[hi++];
+      double gap = Math.min(loGap, hiGap);
+      double bound = best + SLACK * (vecLengthSquared + lsq[bestIndex] + lsq[j]);
+      // Every center left on either side has at least this big of a difference in norms
+      if (gap * gap > bound) {
+        break;
+      }
+      double d;
+      if (xTails == null) {
+        d = vecLengthSquared + lsq[j] - 2 * query.dot(points[i], j * dimensions);
+      } else {
+        d = distance(query.values, xTails, vecLengthSquared, i, j, bound);
       }
-      if (distance > idx.distance) {
-        return 1;
+      if (d == Double.POSITIVE_INFINITY) {
+        continue;
+      }
+      compared++;
+      // Ties go to the lowest index, just like a scan over every center
+      if (d < best || (d == best && j < bestIndex)) {
+        best = d;
+        bestIndex = j;
       }
-      return 0;
     }
-    
-    @Override
-    public boolean equals(Object o) {
-      if (!(o instanceof Idx)) {
-        return false;
+    distances[i] = best;
+    closestPoints[i] = bestIndex;
+    return size - compared;
+  }
+  
+  /**
+   * Computes the squared distance from the dense query to a center, or returns infinity
+   * as soon as it is clear that the distance is greater than the given bound.
+   */
+  private double distance(double[] x, double[] xTails, double vecLengthSquared, int i, int j,
+      double bound) {
+    double[] p = points[i];
+    double[] t = tails[i];
+    double lsq = lengthSquared[i][j];
+    int offset = j * dimensions;
+    int tailOffset = j * numBlocks;
+    double dot = 0.0;
+    for (int b = 0; b < numBlocks; b++) {
+      // The rest of the dot product is at most the product of the norms of the rest
+      if (b > 0 && vecLengthSquared + lsq - 2 * (dot + xTails[b] * t[tailOffset + b]) > bound) {
+        return Double.POSITIVE_INFINITY;
+      }
+      for (int k = b * BLOCK_SIZE; k < Math.min((b + 1) * BLOCK_SIZE, dimensions); k++) {
+        dot += x[k] * p[offset + k];
       }
-      Idx other = (Idx) o;
-      return distance == other.distance && index == other.index;
     }
-    
-    @Override
-    public int hashCode() {
-      return distance ^ index;
+    return vecLengthSquared + lsq - 2 * dot;
+  }
+  
+  private static void siftUp(long[] heap, int pos, long key) {
+    while (pos > 0) {
+      int parent = (pos - 1) >>> 1;
+      if (heap[parent] >= key) {
+        break;
+      }
+      heap[pos] = heap[parent];
+      pos = parent;
     }
+    heap[pos] = key;
   }
   
-  private static int hammingDistance(BitSet q, BitSet idx) {
-    BitSet x = new BitSet(q.size());
-    x.or(q);
-    x.xor(idx);
-    return x.cardinality();
+  // Replaces the largest key in the heap with the given (smaller) one
+  private static void siftDown(long[] heap, int size, long key) {
+    int pos = 0;
+    while (true) {
+      int child = 2 * pos + 1;
+      if (child >= size) {
+        break;
+      }
+      if (child + 1 < size && heap[child + 1] > heap[child]) {
+        child++;
+      }
+      if (heap[child] <= key) {
+        break;
+      }
+      heap[pos] = heap[child];
+      pos = child;
+    }
+    heap[pos] = key;
   }
   
-  private static double dot(Vector vec, double[] p) {
-    double dot = 0;
-    if (vec.isDense()) {
-      for (int i = 0; i < p.length; i++) {
-        dot += vec.getQuick(i) * p[i];
+  private static int hammingDistance(long[] q, long[] index, int offset) {
+    int distance = 0;
+    for (int w = 0; w < q.length; w++) {
+      distance += Long.bitCount(q[w] ^ index[offset + w]);
+    }
+    return distance;
+  }
+  
+  /**
+   * Computes the distances for a batch of queries at once. Exact lookups read each
+   * center once for the whole batch instead of once per query, which is much friendlier
+   * to the cache when there are many centers or clusterings. The results are identical
+   * to calling {@link #getDistances(Vector, boolean)} on each query.
+   */
+  public Distances[] getDistances(List<? extends Vector> vecs, boolean approx) {
+    int n = vecs.size();
+    Distances[] out = new Distances[n];
+    if (approx) {
+      Scratch scratch = new Scratch();
+      for (int q = 0; q < n; q++) {
+        out[q] = getDistances(vecs.get(q), true, scratch);
       }
-    } else {
-      Iterator<Vector.Element> iter = vec.iterateNonZero();
-      while (iter.hasNext()) {
-        Vector.Element e = iter.next();
-        dot += e.get() * p[e.index()];
+      return out;
+    }
+    Query[] queries = new Query[n];
+    double[] norms = new double[n];
+    for (int q = 0; q < n; q++) {
+      queries[q] = new Query(vecs.get(q), dimensions);
+      norms[q] = Math.sqrt(queries[q].lengthSquared);
+      out[q] = new Distances(new double[pointsPerCenter.length], new int[pointsPerCenter.length]);
+    }
+    // The dot products for a tile of centers against every query, or NaN if pruned
+    double[][] dots = new double[TILE_CENTERS][n];
+    int[] active = new int[n];
+    for (int i = 0; i < pointsPerCenter.length; i++) {
+      double[] p = points[i];
+      double[] lsq = lengthSquared[i];
+      for (int q = 0; q < n; q++) {
+        out[q].clusterDistances[i] = Double.POSITIVE_INFINITY;
+      }
+      for (int start = 0; start < pointsPerCenter[i]; start += TILE_CENTERS) {
+        int end = Math.min(start + TILE_CENTERS, pointsPerCenter[i]);
+        for (int j = start; j < end; j++) {
+          double norm = Math.sqrt(lsq[j]);
+          double[] dot = dots[j - start];
+          for (int q = 0; q < n; q++) {
+            Distances d = out[q];
+            double gap = norms[q] - norm;
+            double bound = d.clusterDistances[i] +
+                SLACK * (queries[q].lengthSquared + lsq[d.closestPoints[i]] + lsq[j]);
+            if (gap * gap > bound) {
+              d.prunedCenters++;
+              dot[q] = Double.NaN;
+            } else if (queries[q].values == null) {
+              dot[q] = queries[q].dot(p, j * dimensions);
+            } else {
+              dot[q] = 0.0;
+            }
+          }
+        }
+        // Accumulate the dense dot products a block of dimensions at a time, in the same
+        // order as Query.dot, so that the tile of centers and the block of each query
+        // stay in the cache
+        for (int k0 = 0; k0 < dimensions; k0 += TILE_DIMENSIONS) {
+          int k1 = Math.min(k0 + TILE_DIMENSIONS, dimensions);
+          for (int j = start; j < end; j++) {
+            double[] dot = dots[j - start];
+            int offset = j * dimensions;
+            int numActive = 0;
+            for (int q = 0; q < n; q++) {
+              if (queries[q].values != null && !Double.isNaN(dot[q])) {
+                active[numActive++] = q;
+              }
+            }
+            // Four queries at a time share each load of the center's values and keep four
+            // independent sums in flight
+            int a = 0;
+            for (; a + 4 <= numActive; a += 4) {
+              double[] x0 = queries[active[a]].values;
+              double[] x1 = queries[active[a + 1]].values;
+              double[] x2 = queries[active[a + 2]].values;
+              double[] x3 = queries[active[a + 3]].values;
+              double s0 = dot[active[a]];
+              double s1 = dot[active[a + 1]];
+              double s2 = dot[active[a + 2]];
+              double s3 = dot[active[a + 3]];
+              for (int k = k0; k < k1; k++) {
+                double c = p[offset + k];
+                s0 += x0[k] * c;
+                s1 += x1[k] * c;
+                s2 += x2[k] * c;
+                s3 += x3[k] * c;
+              }
+              dot[active[a]] = s0;
+              dot[active[a + 1]] = s1;
+              dot[active[a + 2]] = s2;
+              dot[active[a + 3]] = s3;
+            }
+            for (; a < numActive; a++) {
+              double[] x = queries[active[a]].values;
+              double sum = dot[active[a]];
+              for (int k = k0; k < k1; k++) {
+                sum += x[k] * p[offset + k];
+              }
+              dot[active[a]] = sum;
+            }
+          }
+        }
+        for (int j = start; j < end; j++) {
+          double[] dot = dots[j - start];
+          for (int q = 0; q < n; q++) {
+            if (!Double.isNaN(dot[q])) {
+              Distances d = out[q];
+              double dist = queries[q].lengthSquared + lsq[j] - 2 * dot[q];
+              if (dist < d.clusterDistances[i]) {
+                d.clusterDistances[i] = dist;
+                d.closestPoints[i] = j;
+              }
+            }
+          }
+        }
+      }
+    }
+    return out;
+  }
+  
+  /**
+   * A query vector that has been unpacked into primitive arrays, so that its values are
+   * only read through the {@code Vector} interface once per lookup.
+   */
+  private static final class Query {
+    private final double lengthSquared;
+    // The values of a dense query, or null if it is sparse
+    private final double[] values;
+    private final int[] indices;
+    private final double[] nonZeros;
+    private final int numNonZeros;
+
+    Query(Vector vec, int dimensions) {
+      this.lengthSquared = vec.getLengthSquared();
+      if (vec.isDense()) {
+        this.values = new double[dimensions];
+        for (int i = 0; i < dimensions; i++) {
+          values[i] = vec.getQuick(i);
+        }
+        this.indices = null;
+        this.nonZeros = null;
+        this.numNonZeros = 0;
+      } else {
+        this.values = null;
+        int capacity = vec.getNumNondefaultElements();
+        int[] idx = new int[capacity];
+        double[] nz = new double[capacity];
+        int count = 0;
+        Iterator<Vector.Element> iter = vec.iterateNonZero();
+        while (iter.hasNext()) {
+          Vector.Element e = iter.next();
+          if (count == idx.length) {
+            idx = Arrays.copyOf(idx, 2 * count + 1);
+            nz = Arrays.copyOf(nz, 2 * count + 1);
+          }
+          idx[count] = e.index();
+          nz[count++] = e.get();
+        }
+        this.indices = idx;
+        this.nonZeros = nz;
+        this.numNonZeros = count;
+      }
+    }
+
+    double dot(double[] p, int offset) {
+      double dot = 0;
+      if (values != null) {
+        for (int i = 0; i < values.length; i++) {
+          dot += values[i] * p[offset + i];
+        }
+      } else {
+        for (int k = 0; k < numNonZeros; k++) {
+          dot += nonZeros[k] * p[offset + indices[k]];
+        }
       }
+      return dot;
     }
-    return dot;
   }
   
   public List<List<Weighted<Vector>>> getWeightedVectors(List<List<Long>> pointCounts) {
     List<List<Weighted<Vector>>> ret = Lists.newArrayList();
     for (int i = 0; i < pointCounts.size(); i++) {
       List<Long> counts = pointCounts.get(i);
-      List<double[]> p = points.get(i);
       List<Weighted<Vector>> weighted = Lists.newArrayList();
       for (int j = 0; j < counts.size(); j++) {
-        weighted.add(new Weighted<Vector>(Vectors.of(p.get(j)), counts.get(j)));
+        weighted.add(new Weighted<Vector>(Vectors.of(row(i, j)), counts.get(j)));
       }
       ret.add(weighted);
     }
@@ -0,0 +1,151 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.kmeans.parallel;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * The optional settings for the k-means|| initialization that is run by
+ * {@link KMeansParallel#initialization}. The defaults match the algorithm as it is described
+ * in Bahmani et al.: a fixed number of iterations, each of which scores every point against
+ * every candidate and takes a reservoir sample of the points.
+ */
+public class InitializationOptions {
+
+  public static final InitializationOptions DEFAULT = builder().build();
+
+  private final boolean persistDistances;
+  private final SamplingMode sampling;
+  private final boolean fuseWeights;
+  private final double minImprovement;
+  private final int maxCandidates;
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public static class Builder {
+    private boolean persistDistances = false;
+    private SamplingMode sampling = SamplingMode.RESERVOIR;
+    private boolean fuseWeights = false;
+    private double minImprovement = 0.0;
+    private int maxCandidates = Integer.MAX_VALUE;
+
+    /**
+     * Whether to keep the distance from each point to its closest candidate between
+     * iterations. If so, the points are written out along with their distances on each
+     * iteration, and the next iteration reads them back and only compares them to the
+     * candidates that were added by the last iteration, instead of to every candidate
+     * chosen so far.
+     */
+    public Builder persistDistances(boolean persistDistances) {
+      this.persistDistances = persistDistances;
+      return this;
+    }
+
+    /**
+     * How to choose the points that are added to the candidates on each iteration.
+     */
+    public Builder sampling(SamplingMode sampling) {
+      this.sampling = Preconditions.checkNotNull(sampling);
+      return this;
+    }
+
+    /**
+     * Whether to count the points that are closest to each candidate in the job for the last
+     * iteration. If so, that job counts the points that are closest to each of the candidates
+     * that were chosen before it from the same lookups that score the points, and writes out
+     * the points along with their distances to those candidates. A map-only pass then reads
+     * every one of those scored points back and only compares them to the candidates that
+     * were chosen on the last iteration, to move the points that are closer to one of them.
+     *
+     * <p>This saves comparing every point to the earlier candidates a second time, which is
+     * most of the work when there are many candidates, but it does not save a pass over the
+     * data: the scored points are written out in full and read back by the correction pass,
+     * just as the separate pass would read the original points. The weights are the same as
+     * the ones from the separate pass when the approximate lookups compare each point to every
+     * candidate (i.e., when no fold has more than {@code projectionSamples} candidates). If the
+     * iterations stop early, the candidates are weighted with the separate pass.
+     */
+    public Builder fuseWeights(boolean fuseWeights) {
+      this.fuseWeights = fuseWeights;
+      return this;
+    }
+
+    /**
+     * Stops the iterations once the relative decrease in the total cost of every fold from one
+     * iteration to the next is less than the given fraction. The costs are summed up in the
+     * map tasks of each iteration's job and written out alongside the scored points, so they
+     * don't need an extra pass over the data. Zero, the default, runs every iteration.
+     */
+    public Builder minImprovement(double minImprovement) {
+      Preconditions.checkArgument(minImprovement >= 0.0,
+          "Minimum improvement must be non-negative: %s", minImprovement);
+      this.minImprovement = minImprovement;
+      return this;
+    }
+
+    /**
+     * Stops the iterations once every fold has at least the given number of candidates.
+     */
+    public Builder maxCandidates(int maxCandidates) {
+      Preconditions.checkArgument(maxCandidates > 0,
+          "Maximum number of candidates must be positive: %s", maxCandidates);
+      this.maxCandidates = maxCandidates;
+      return this;
+    }
+
+    public InitializationOptions build() {
+      return new InitializationOptions(persistDistances, sampling, fuseWeights, minImprovement,
+          maxCandidates);
+    }
+  }
+
+  private InitializationOptions(boolean persistDistances, SamplingMode sampling,
+      boolean fuseWeights, double minImprovement, int maxCandidates) {
+    this.persistDistances = persistDistances;
+    this.sampling = sampling;
+    this.fuseWeights = fuseWeights;
+    this.minImprovement = minImprovement;
+    this.maxCandidates = maxCandidates;
+  }
+
+  public boolean isPersistDistances() {
+    return persistDistances;
+  }
+
+  public SamplingMode getSampling() {
+    return sampling;
+  }
+
+  public boolean isFuseWeights() {
+    return fuseWeights;
+  }
+
+  public double getMinImprovement() {
+    return minImprovement;
+  }
+
+  public int getMaxCandidates() {
+    return maxCandidates;
+  }
+
+  /**
+   * Whether the iterations may stop before all of them have been run.
+   */
+  public boolean isAdaptive() {
+    return minImprovement > 0.0 || maxCandidates < Integer.MAX_VALUE;
+  }
+}
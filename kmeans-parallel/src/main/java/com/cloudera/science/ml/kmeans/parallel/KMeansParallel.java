@@ -16,10 +16,12 @@ package com.cloudera.science.ml.kmeans.parallel;
 
 import static org.apache.crunch.types.avro.Avros.doubles;
 import static org.apache.crunch.types.avro.Avros.ints;
+import static org.apache.crunch.types.avro.Avros.longs;
 import static org.apache.crunch.types.avro.Avros.pairs;
 import static org.apache.crunch.types.avro.Avros.tableOf;
 
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -37,6 +39,7 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.crunch.Aggregator;
 import org.apache.crunch.DoFn;
 import org.apache.crunch.Emitter;
+import org.apache.crunch.FilterFn;
 import org.apache.crunch.MapFn;
 import org.apache.crunch.PCollection;
 import org.apache.crunch.PObject;
@@ -48,6 +51,8 @@ import org.apache.crunch.types.PTableType;
 import org.apache.crunch.types.PType;
 import org.apache.crunch.types.PTypeFamily;
 import org.apache.crunch.types.avro.Avros;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.mahout.math.DenseVector;
 import org.apache.mahout.math.NamedVector;
 import org.apache.mahout.math.Vector;
 
@@ -60,6 +65,7 @@ import com.cloudera.science.ml.core.vectors.Centers;
 import com.cloudera.science.ml.core.vectors.VectorConvert;
 import com.cloudera.science.ml.core.vectors.Weighted;
 import com.cloudera.science.ml.kmeans.parallel.CentersIndex.Distances;
+import com.cloudera.science.ml.kmeans.parallel.CentersIndex.Scratch;
 import com.cloudera.science.ml.parallel.crossfold.Crossfold;
 import com.cloudera.science.ml.parallel.fn.SumVectorsAggregator;
 import com.cloudera.science.ml.parallel.pobject.ListOfListsPObject;
@@ -68,7 +74,10 @@ import com.cloudera.science.ml.parallel.records.Records;
 import com.cloudera.science.ml.parallel.sample.ReservoirSampling;
 import com.cloudera.science.ml.parallel.types.MLRecords;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.primitives.Doubles;
+import com.google.common.primitives.Longs;
 
 /**
  * <p>An implementation of the k-means|| algorithm, as described in
@@ -84,6 +93,15 @@ public class KMeansParallel {
 
   private static final Log LOG = LogFactory.getLog(KMeansParallel.class);
   
+  // The number of points whose exact assignments are computed together
+  private static final int ASSIGNMENT_BATCH_SIZE = 32;
+  
+  // The center ID that the map phase of Lloyd's algorithm uses for the cost of a clustering
+  private static final int COST_ID = -1;
+  
+  // The placeholder point that the total cost of each fold is written out with
+  private static final Vector NO_POINT = new DenseVector(0);
+  
   public static final Spec ASSIGNMENT_SPEC = RecordSpec.builder()
       .addString("vector_id")
       .addInt("cluster_id")
@@ -98,8 +116,19 @@ public class KMeansParallel {
       .addDouble("outlier_distance")
       .build();
 
+  /**
+   * The Hadoop counters that are updated by the jobs this class runs.
+   */
+  public enum Counters {
+    /** The number of centers that exact lookups could skip without a full comparison. */
+    PRUNED_CENTERS
+  }
+
   private final int projectionBits;
   private final int projectionSamples;
+  private final int numTables;
+  private final int numProbes;
+  private final RandomProjection projectionType;
   private final long seed;
   private final Random random;
   
@@ -112,8 +141,45 @@ public class KMeansParallel {
    * for running the k-means algorithm for testing purposes.
    */
   public KMeansParallel(Random random, int projectionBits, int projectionSamples) {
+    this(random, projectionBits, projectionSamples, 0, 0);
+  }
+  
+  /**
+   * Creates an instance whose approximate center lookups use multi-probe locality-sensitive
+   * hashing, which only compares each point to the centers in a few buckets of each of
+   * {@code numTables} hash tables instead of scanning the signatures of every center.
+   * 
+   * @param random The source of randomness, or null to use the current time as the seed
+   * @param projectionBits The number of random projections in each signature
+   * @param projectionSamples The number of closest signatures to compare when scanning
+   * @param numTables The number of hash tables, or zero to scan every signature
+   * @param numProbes The number of neighboring buckets to probe in each table
+   */
+  public KMeansParallel(Random random, int projectionBits, int projectionSamples,
+      int numTables, int numProbes) {
+    this(random, projectionBits, projectionSamples, numTables, numProbes,
+        RandomProjection.GAUSSIAN);
+  }
+  
+  /**
+   * Creates an instance that computes the signatures of its approximate center lookups
+   * with the given kind of {@link RandomProjection}, which is seeded from the given
+   * {@code Random} so that the signatures are reproducible.
+   * 
+   * @param random The source of randomness, or null to use the current time as the seed
+   * @param projectionBits The number of random projections in each signature
+   * @param projectionSamples The number of closest signatures to compare when scanning
+   * @param numTables The number of hash tables, or zero to scan every signature
+   * @param numProbes The number of neighboring buckets to probe in each table
+   * @param projectionType The kind of random projection to use
+   */
+  public KMeansParallel(Random random, int projectionBits, int projectionSamples,
+      int numTables, int numProbes, RandomProjection projectionType) {
     this.projectionBits = projectionBits;
     this.projectionSamples = projectionSamples;
+    this.numTables = numTables;
+    this.numProbes = numProbes;
+    this.projectionType = projectionType;
     if (random == null) {
       this.seed = System.currentTimeMillis();
     } else {
@@ -138,8 +204,14 @@ public class KMeansParallel {
     return getCosts(vecs, createIndex(centers), approx);
   }
 
+  private CentersIndex newIndex(int numClusterings, int dimensions, long seed) {
+    return new CentersIndex(numClusterings, dimensions, projectionBits, projectionSamples,
+        numTables, numProbes, projectionType, seed);
+  }
+  
   private CentersIndex createIndex(List<Centers> centers) {
-    return new CentersIndex(centers, projectionBits, projectionSamples, seed);
+    return new CentersIndex(centers, projectionBits, projectionSamples, numTables, numProbes,
+        projectionType, seed);
   }
   
   private static <V extends Vector> PObject<List<Double>> getCosts(PCollection<V> vecs, CentersIndex centers,
@@ -176,15 +248,107 @@ public class KMeansParallel {
    */
   public <V extends NamedVector> Records computeClusterAssignments(
       PCollection<V> vecs, List<Centers> centers, List<Integer> clusterIds) {
+    return computeClusterAssignments(vecs, centers, clusterIds, false);
+  }
+  
+  /**
+   * For each of the {@code NamedVector} instances in the given {@code PCollection}, calculate which
+   * cluster in each of the {@code Centers} it is assigned (i.e., closest) to and its distance from
+   * that closest center. The clusters will be identified by the given list of cluster IDs.
+   * 
+   * @param vecs The named vectors, with the name used as a unique identifier
+   * @param centers The centers of the clusters
+   * @param clusterIds Integer identifiers to use for the clusters
+   * @param approx Whether or not to use approximate assignments to speed up computations
+   * @return A {@code Records} instance containing the cluster assignment info for each point
+   */
+  public <V extends NamedVector> Records computeClusterAssignments(
+      PCollection<V> vecs, List<Centers> centers, List<Integer> clusterIds, boolean approx) {
     if (clusterIds != null && !clusterIds.isEmpty()) {
       Preconditions.checkArgument(centers.size() == clusterIds.size(),
           "Num centers and num clusters must be equal");
     }
     CentersIndex index = createIndex(centers);
-    return new Records(vecs.parallelDo("assignments", new AssignedCenterFn<V>(index, clusterIds),
+    return new Records(vecs.parallelDo("assignments",
+        new AssignedCenterFn<V>(index, clusterIds, approx),
         MLRecords.record(ASSIGNMENT_SPEC)), ASSIGNMENT_SPEC);
   }
 
+  /**
+   * For each of the {@code NamedVector} instances in the given {@code PCollection}, calculate which
+   * cluster in each of the {@code Centers} it is assigned (i.e., closest) to and its distance from
+   * that closest center, without ever loading all of the centers into a single task.
+   * 
+   * <p>The centers are split into shards of at most {@code centersPerShard} centers from each of
+   * the clusterings. Every point is compared to each shard in a separate job, so each task only
+   * needs to hold one shard in memory. Each job shuffles the closest center from its shard
+   * together with the closest center from the shards before it, and reduces them to the closest
+   * center so far, so this costs one pass over the data for each shard, plus the shuffle of up
+   * to two partial results per point and clustering in each job. Since each job reads the
+   * output of the one before it, the planner runs them one after another along with the rest
+   * of the pipeline. The partial results are matched up by name, so the names of the points
+   * must be unique, and the reduce phase fails if it finds more than one point with the same
+   * name.
+   * 
+   * @param vecs The named vectors, with the name used as a unique identifier
+   * @param centers The centers of the clusters
+   * @param clusterIds Integer identifiers to use for the clusters
+   * @param approx Whether or not to use approximate assignments to speed up computations
+   * @param centersPerShard The maximum number of centers from each clustering in a shard
+   * @return A {@code Records} instance containing the cluster assignment info for each point
+   */
+  public <V extends NamedVector> Records computeClusterAssignments(
+      PCollection<V> vecs, List<Centers> centers, List<Integer> clusterIds, boolean approx,
+      int centersPerShard) {
+    Preconditions.checkArgument(centersPerShard > 0, "Centers per shard must be positive");
+    int maxCenters = 0;
+    for (Centers c : centers) {
+      maxCenters = Math.max(maxCenters, c.size());
+    }
+    if (maxCenters <= centersPerShard) {
+      return computeClusterAssignments(vecs, centers, clusterIds, approx);
+    }
+    if (clusterIds != null && !clusterIds.isEmpty()) {
+      Preconditions.checkArgument(centers.size() == clusterIds.size(),
+          "Num centers and num clusters must be equal");
+    }
+    PTableType<Pair<String, Integer>, Pair<Double, Integer>> ptt = tableOf(
+        pairs(Avros.strings(), ints()), pairs(doubles(), ints()));
+    PTable<Pair<String, Integer>, Pair<Double, Integer>> closest = null;
+    for (int offset = 0; offset < maxCenters; offset += centersPerShard) {
+      List<Centers> shard = Lists.newArrayList();
+      List<Integer> clusterings = Lists.newArrayList();
+      // The number of partial results to expect for each point in each clustering
+      int[] numResults = new int[centers.size()];
+      for (int i = 0; i < centers.size(); i++) {
+        Centers c = centers.get(i);
+        if (c.size() > offset) {
+          shard.add(new Centers(c.subList(offset, Math.min(c.size(), offset + centersPerShard))));
+          clusterings.add(i);
+          numResults[i]++;
+        }
+        if (offset > 0) {
+          numResults[i]++;
+        }
+      }
+      int shardId = offset / centersPerShard;
+      PTable<Pair<String, Integer>, Pair<Double, Integer>> partials = vecs.parallelDo(
+          "assign-shard-" + shardId,
+          new ShardClosestFn<V>(createIndex(shard), clusterings, offset, approx), ptt);
+      if (closest != null) {
+        partials = partials.union(closest);
+      }
+      // No combiner, since every partial result for a point in the same map task comes from a
+      // different point with the same name
+      closest = partials
+          .groupByKey()
+          .parallelDo("closest-shard-" + shardId, new ClosestShardFn(numResults), ptt);
+    }
+    return new Records(closest
+        .parallelDo("assignments", new ShardAssignmentFn(clusterIds),
+            MLRecords.record(ASSIGNMENT_SPEC)), ASSIGNMENT_SPEC);
+  }
+  
   /**
    * Builds the covariance matrix and associated metadata for each of the centers
    * of the given clusters.
@@ -266,31 +430,189 @@ public class KMeansParallel {
   public <V extends Vector> List<List<Weighted<Vector>>> initialization(
       PCollection<V> vecs, int numIterations, int samplesPerIteration,
       List<Vector> initialPoints, Crossfold crossfold) {
+    return initialization(vecs, numIterations, samplesPerIteration, initialPoints, crossfold,
+        InitializationOptions.DEFAULT);
+  }
+  
+  /**
+   * Performs the k-means|| initialization to generate a set of candidate {@code Weighted<Vector>}
+   * instances for each of the given {@code Vector} initial points, with the given
+   * {@link InitializationOptions}.
+   * 
+   * @param vecs The dataset
+   * @param numIterations The (maximum) number of iterations of k-means|| to run
+   * @param samplesPerIteration The (expected) number of points to sample in each iteration
+   * @param initialPoints The points to start the candidates of each fold with
+   * @param crossfold The assignment of points to folds
+   * @param options How to run the iterations and weight the candidates
+   * @return The weighted candidates for each fold
+   */
+  public <V extends Vector> List<List<Weighted<Vector>>> initialization(
+      PCollection<V> vecs, int numIterations, int samplesPerIteration,
+      List<Vector> initialPoints, Crossfold crossfold, InitializationOptions options) {
 
-    CentersIndex centers = new CentersIndex(crossfold.getNumFolds(),
-        initialPoints.get(0).size(), projectionBits, projectionSamples,
+    int numFolds = crossfold.getNumFolds();
+    int dimensions = initialPoints.get(0).size();
+    CentersIndex centers = newIndex(numFolds, dimensions,
         random == null ? System.currentTimeMillis() : random.nextLong());
+    // A copy of the candidates that leaves out the ones chosen by the last iteration
+    CentersIndex previous = null;
+    if (options.isFuseWeights() && numIterations > 0) {
+      previous = newIndex(numFolds, dimensions, centers.getSeed());
+    }
 
     for (Vector initialPoint : initialPoints) {
-      for (int j = 0; j < crossfold.getNumFolds(); j++) {
+      for (int j = 0; j < numFolds; j++) {
         centers.add(initialPoint, j);
+        if (previous != null) {
+          previous.add(initialPoint, j);
+        }
       }
     }
     
-    PType<V> ptype = vecs.getPType();
+    // Every pass after the first reads the points and their folds from a packed copy
+    PType<Vector> ptype = MLAvros.packedVector();
     PTypeFamily ptf = ptype.getFamily();
-    PTableType<Integer, Pair<V, Double>> ptt = ptf.tableOf(
+    PTableType<Integer, Pair<Vector, Double>> ptt = ptf.tableOf(
         ptf.ints(), ptf.pairs(ptype, ptf.doubles()));
-    PCollection<Pair<Integer, V>> folds = crossfold.apply(vecs);
+    PCollection<Pair<Integer, Vector>> folds = crossfold.apply(pack(vecs));
+    folds.materialize();
+    boolean persistDistances = options.isPersistDistances();
+    boolean bernoulli = options.getSampling() == SamplingMode.BERNOULLI;
+    PTable<Integer, Pair<Vector, Double>> scores = null;
+    CentersIndex added = null;
+    double[] costs = null;
+    Iterable<Pair<Pair<Integer, Integer>, Long>> closestCounts = null;
+    CentersIndex lastAdded = null;
     for (int i = 0; i < numIterations; i++) {
       LOG.info(String.format("Running iteration %d of k-means|| initialization procedure", i + 1));
-      ScoringFn<V> scoringFn = new ScoringFn<V>(centers);
-      PTable<Integer, Pair<V, Double>> scores = folds.parallelDo("computeDistances", scoringFn, ptt);
-      PTable<Integer, V> sample = ReservoirSampling.groupedWeightedSample(
-          scores, samplesPerIteration, random);
-      updateCenters(sample.materialize(), centers);
+      boolean last = i == numIterations - 1;
+      boolean countClosest = last && previous != null;
+      // Along with the scored points, the total cost of each fold is written out at the end
+      // of each map task
+      PTable<Integer, Pair<Vector, Double>> scored;
+      // When the last iteration also counts the points closest to each candidate, it has to
+      // read all of the points, so they are scored against every candidate in the same pass
+      if (scores == null || !persistDistances || countClosest) {
+        scored = folds.parallelDo("computeDistances",
+            new ScoringFn<Vector>(centers, countClosest), ptt);
+      } else {
+        scored = scores.parallelDo("updateDistances", new UpdateScoresFn(added), ptt);
+      }
+      scores = scored.filter("pointScores", new PointScoresFn());
+      if (persistDistances || bernoulli) {
+        // Writes out the scores along with the costs, so that the next iteration (or the
+        // Bernoulli sample) reads them back instead of recomputing them
+        scores.materialize();
+      }
+      if (persistDistances) {
+        added = newIndex(numFolds, dimensions, centers.getSeed());
+      }
+      // Everything is materialized before the sample is read, so that it all comes out of
+      // the same job
+      Iterable<Pair<Integer, Double>> foldCosts = null;
+      if (bernoulli || (!last && options.isAdaptive())) {
+        foldCosts = scored
+            .parallelDo("foldCosts", new FoldCostFn(), tableOf(ints(), doubles()))
+            .materialize();
+      }
+      if (countClosest) {
+        // The candidates haven't been updated yet, so these are the counts for the ones
+        // that were chosen before this iteration
+        closestCounts = scored
+            .parallelDo("closest-counts", new FoldCountFn(),
+                tableOf(pairs(ints(), ints()), longs()))
+            .materialize();
+        if (!persistDistances && !bernoulli) {
+          // Written out so that the correction pass reads them back instead of rescoring them
+          scores.materialize();
+        }
+        lastAdded = newIndex(numFolds, dimensions, centers.getSeed());
+      }
+      double[] lastCosts = costs;
+      Iterable<Pair<Integer, Vector>> chosen;
+      if (bernoulli) {
+        // The probabilities have to be scaled by the cost of the same candidates that the
+        // points were scored against, so the scoring job is run first, and then the scores
+        // that it wrote out are sampled in a map-only pass
+        costs = toFoldCosts(foldCosts, numFolds);
+        BernoulliSampleFn<Vector> sampleFn = new BernoulliSampleFn<Vector>(samplesPerIteration, costs,
+            random == null ? System.currentTimeMillis() : random.nextLong());
+        chosen = scores.parallelDo("bernoulliSample", sampleFn, ptf.tableOf(ptf.ints(), ptype))
+            .materialize();
+      } else {
+        PTable<Integer, Vector> sample = ReservoirSampling.groupedWeightedSample(
+            scores, samplesPerIteration, random);
+        chosen = sample.materialize();
+        if (foldCosts != null) {
+          costs = toFoldCosts(foldCosts, numFolds);
+        }
+      }
+      updateCenters(chosen, centers);
+      if (added != null) {
+        updateCenters(chosen, added);
+      }
+      if (lastAdded != null) {
+        updateCenters(chosen, lastAdded);
+      }
+      if (previous != null && !last) {
+        updateCenters(chosen, previous);
+      }
+      if (!last && options.isAdaptive() && isConverged(lastCosts, costs,
+          options.getMinImprovement(), centers, options.getMaxCandidates())) {
+        LOG.info(String.format("Stopping k-means|| initialization after iteration %d", i + 1));
+        break;
+      }
+    }
+    if (closestCounts == null) {
+      return getWeightedVectors(folds, centers);
+    }
+    LOG.info("Correcting the weights of the last iteration's candidates");
+    Iterable<Pair<Pair<Integer, Integer>, Long>> corrections = scores
+        .parallelDo("correct-counts", new CorrectionFn<Vector>(previous, lastAdded),
+            tableOf(pairs(ints(), ints()), longs()))
+        .materialize();
+    return centers.getWeightedVectors(sumCounts(centers, closestCounts, corrections));
+  }
+  
+  private static boolean isConverged(double[] lastCosts, double[] costs, double minImprovement,
+      CentersIndex centers, int maxCandidates) {
+    int[] numPoints = centers.getPointsPerCluster();
+    boolean converged = lastCosts != null;
+    boolean enough = true;
+    for (int i = 0; i < costs.length; i++) {
+      if (lastCosts != null && lastCosts[i] > 0.0) {
+        double improvement = (lastCosts[i] - costs[i]) / lastCosts[i];
+        LOG.info(String.format("Cost of fold %d went from %.6g to %.6g (%.2f%% lower)",
+            i, lastCosts[i], costs[i], 100.0 * improvement));
+        converged &= improvement < minImprovement;
+      }
+      enough &= numPoints[i] >= maxCandidates;
+    }
+    return converged || enough;
+  }
+  
+  /**
+   * Adds up the counts of the points that are closest to each of the candidates that were
+   * chosen before the last iteration and the changes to them from the correction pass, both
+   * of which were summed up separately by each map task.
+   */
+  private static List<List<Long>> sumCounts(CentersIndex centers,
+      Iterable<Pair<Pair<Integer, Integer>, Long>> closestCounts,
+      Iterable<Pair<Pair<Integer, Integer>, Long>> corrections) {
+    int[] numPoints = centers.getPointsPerCluster();
+    long[][] counts = new long[numPoints.length][];
+    for (int i = 0; i < numPoints.length; i++) {
+      counts[i] = new long[numPoints[i]];
+    }
+    for (Pair<Pair<Integer, Integer>, Long> p : Iterables.concat(closestCounts, corrections)) {
+      counts[p.first().first()][p.first().second()] += p.second();
+    }
+    List<List<Long>> result = Lists.newArrayListWithExpectedSize(counts.length);
+    for (long[] c : counts) {
+      result.add(Longs.asList(c));
     }
-    return getWeightedVectors(folds, centers);
+    return result;
   }
   
   /**
@@ -305,20 +627,100 @@ public class KMeansParallel {
    */
   public <V extends Vector> List<Centers> lloydsAlgorithm(PCollection<V> points, List<Centers> centers,
       int numIterations, boolean approx) {
-    PTypeFamily tf = points.getTypeFamily();
-    PTableType<Pair<Integer, Integer>, Pair<V, Long>> ptt = tf.tableOf(tf.pairs(tf.ints(), tf.ints()),
-        tf.pairs(points.getPType(), tf.longs()));
-    Aggregator<Pair<V, Long>> agg = new SumVectorsAggregator<V>();
+    return lloydsAlgorithm(points, centers, numIterations, approx, null);
+  }
+  
+  /**
+   * Runs Lloyd's algorithm on the given points for a given number of iterations, returning the final
+   * centers that result, and recording the cost of the centers that each iteration starts from.
+   * 
+   * <p>The costs are summed up in the same map tasks that sum up the points that are closest to
+   * each center, so they don't need an extra pass over the data. The cost of the centers that
+   * are returned is not included, since it would take another pass to compute.
+   * 
+   * @param points The data points to cluster
+   * @param centers The list of initial centers
+   * @param numIterations The number of iterations to run, with each iteration corresponding to a MapReduce job
+   * @param approx Whether to use random projection for assigning points to centers
+   * @param costHistory If not null, the cost of each of the {@code Centers} at the start of
+   * each iteration is added to this list, with one list of costs per iteration
+   * @return The centers after the last iteration
+   */
+  public <V extends Vector> List<Centers> lloydsAlgorithm(PCollection<V> points, List<Centers> centers,
+      int numIterations, boolean approx, List<List<Double>> costHistory) {
+    return lloydsAlgorithm(points, centers, numIterations, approx, costHistory, false);
+  }
+  
+  /**
+   * Runs Lloyd's algorithm on the given points for a given number of iterations, returning the final
+   * centers that result, and recording the cost of the centers that each iteration starts from,
+   * optionally followed by the cost of the centers that are returned.
+   * 
+   * <p>The cost of the returned centers is computed by one last map-only pass over the same
+   * copy of the points that the iterations read, which sums up the costs in each map task, so
+   * it replaces a separate call to {@link #getCosts} on the original input.
+   * 
+   * @param points The data points to cluster
+   * @param centers The list of initial centers
+   * @param numIterations The number of iterations to run, with each iteration corresponding to a MapReduce job
+   * @param approx Whether to use random projection for assigning points to centers
+   * @param costHistory If not null, the cost of each of the {@code Centers} at the start of
+   * each iteration is added to this list, with one list of costs per iteration
+   * @param finalCost Whether to add the cost of the returned centers to the end of the
+   * {@code costHistory}, which must not be null if so
+   * @return The centers after the last iteration
+   */
+  public <V extends Vector> List<Centers> lloydsAlgorithm(PCollection<V> points, List<Centers> centers,
+      int numIterations, boolean approx, List<List<Double>> costHistory, boolean finalCost) {
+    Preconditions.checkArgument(!finalCost || costHistory != null,
+        "A cost history is needed to hold the cost of the final centers");
+    PTableType<Pair<Integer, Integer>, Pair<Vector, Long>> ptt = Avros.tableOf(
+        Avros.pairs(Avros.ints(), Avros.ints()), Avros.pairs(MLAvros.vector(), Avros.longs()));
+    Aggregator<Pair<Vector, Long>> agg = new SumVectorsAggregator<Vector>();
+    PCollection<Vector> input = pack(points);
+    if (numIterations + (finalCost ? 1 : 0) > 1) {
+      // The first pass writes out the packed points for the others to read
+      input.materialize();
+    }
     for (int i = 0; i < numIterations; i++) {
       CentersIndex index = createIndex(centers);
-      LloydsMapFn<V> mapFn = new LloydsMapFn<V>(index, approx);
-      centers = new LloydsCenters<V>(points.parallelDo("lloyds-" + i, mapFn, ptt)
+      LloydsMapFn<Vector> mapFn = new LloydsMapFn<Vector>(index, approx);
+      LloydsCenters next = new LloydsCenters(input.parallelDo("lloyds-" + i, mapFn, ptt)
           .groupByKey()
-          .combineValues(agg), centers.size()).getValue();
+          .combineValues(agg), centers.size());
+      centers = next.getValue();
+      LOG.info(String.format("Costs of the centers at the start of Lloyd's iteration %d: %s",
+          i + 1, next.getCosts()));
+      if (costHistory != null) {
+        costHistory.add(next.getCosts());
+      }
+    }
+    if (finalCost) {
+      Iterable<Pair<Integer, Double>> partials = input
+          .parallelDo("lloyds-costs", new CenterCostFn<Vector>(createIndex(centers), approx),
+              tableOf(ints(), doubles()))
+          .materialize();
+      List<Double> costs = Doubles.asList(toFoldCosts(partials, centers.size()));
+      LOG.info(String.format("Costs of the centers after Lloyd's iteration %d: %s",
+          numIterations, costs));
+      costHistory.add(costs);
     }
     return centers;
   }
   
+  /**
+   * Converts the points to the {@link MLAvros#packedVector()} type, so that a materialized
+   * copy of them can be read back without decoding {@code MLVector} records.
+   */
+  private static <V extends Vector> PCollection<Vector> pack(PCollection<V> points) {
+    return points.parallelDo("pack", new MapFn<V, Vector>() {
+      @Override
+      public Vector map(V vec) {
+        return vec;
+      }
+    }, MLAvros.packedVector());
+  }
+  
   private static <V extends Vector> List<List<Weighted<Vector>>> getWeightedVectors(
       PCollection<Pair<Integer, V>> folds, CentersIndex centers) {
     LOG.info("Computing the weight of each candidate center");
@@ -326,6 +728,18 @@ public class KMeansParallel {
     return centers.getWeightedVectors(indexWeights); 
   }
   
+  /**
+   * Adds up the partial costs of each fold (or clustering) that were written out by each
+   * map task.
+   */
+  private static double[] toFoldCosts(Iterable<Pair<Integer, Double>> values, int numFolds) {
+    double[] costs = new double[numFolds];
+    for (Pair<Integer, Double> p : values) {
+      costs[p.first()] += p.second();
+    }
+    return costs;
+  }
+  
   private static <V extends Vector> void updateCenters(
       Iterable<Pair<Integer, V>> vecs,
       CentersIndex centers) {
@@ -334,94 +748,526 @@ public class KMeansParallel {
     }
   }
   
-  private static class LloydsMapFn<V extends Vector> extends DoFn<V, Pair<Pair<Integer, Integer>, Pair<V, Long>>> {
-    private final CentersIndex centers;
+  /**
+   * Sums up the points that are closest to each center inside of the map task, so that
+   * only one partial sum per center is shuffled instead of every point.
+   */
+  private static class LloydsMapFn<V extends Vector>
+      extends DoFn<V, Pair<Pair<Integer, Integer>, Pair<Vector, Long>>> {
+    private final BroadcastIndex index;
+    private transient Scratch scratch;
+    private transient CentersIndex centers;
     private final boolean approx;
     
+    // The partial sums of the points closest to each center in each clustering,
+    // stored in one row per center
+    private transient double[][] sums;
+    private transient long[][] counts;
+    private transient double[] costs;
+    private long pruned;
+    
     private LloydsMapFn(CentersIndex centers, boolean approx) {
-      this.centers = centers;
+      this.index = new BroadcastIndex(centers);
       this.approx = approx;
     }
     
     @Override
-    public void process(V vec, Emitter<Pair<Pair<Integer, Integer>, Pair<V, Long>>> emitFn) {
-      Distances d = centers.getDistances(vec, approx);
-      Pair<V, Long> out = Pair.of(vec, 1L);
+    public void configure(Configuration conf) {
+      index.configure(conf);
+    }
+    
+    @Override
+    public void initialize() {
+      centers = index.get(getConfiguration());
+      scratch = new Scratch();
+      int[] numPoints = centers.getPointsPerCluster();
+      int dimensions = centers.getDimensions();
+      sums = new double[numPoints.length][];
+      counts = new long[numPoints.length][];
+      for (int i = 0; i < numPoints.length; i++) {
+        sums[i] = new double[numPoints[i] * dimensions];
+        counts[i] = new long[numPoints[i]];
+      }
+      costs = new double[numPoints.length];
+      pruned = 0;
+    }
+    
+    @Override
+    public void process(V vec, Emitter<Pair<Pair<Integer, Integer>, Pair<Vector, Long>>> emitFn) {
+      Distances d = centers.getDistances(vec, approx, scratch);
+      pruned += d.prunedCenters;
+      int dimensions = centers.getDimensions();
       for (int i = 0; i < d.closestPoints.length; i++) {
-        // TODO: cache
-        emitFn.emit(Pair.of(Pair.of(i, d.closestPoints[i]), out));
+        double[] sum = sums[i];
+        int offset = d.closestPoints[i] * dimensions;
+        if (vec.isDense()) {
+          for (int j = 0; j < dimensions; j++) {
+            sum[offset + j] += vec.getQuick(j);
+          }
+        } else {
+          Iterator<Vector.Element> iter = vec.iterateNonZero();
+          while (iter.hasNext()) {
+            Vector.Element e = iter.next();
+            sum[offset + e.index()] += e.get();
+          }
+        }
+        counts[i][d.closestPoints[i]]++;
+        costs[i] += d.clusterDistances[i];
       }
     }
+    
+    @Override
+    public void cleanup(Emitter<Pair<Pair<Integer, Integer>, Pair<Vector, Long>>> emitFn) {
+      int dimensions = centers.getDimensions();
+      for (int i = 0; i < sums.length; i++) {
+        for (int c = 0; c < counts[i].length; c++) {
+          if (counts[i][c] > 0) {
+            Vector sum = new DenseVector(
+                Arrays.copyOfRange(sums[i], c * dimensions, (c + 1) * dimensions), true);
+            emitFn.emit(Pair.of(Pair.of(i, c), Pair.of(sum, counts[i][c])));
+          }
+        }
+        // The cost of each clustering is summed up along with the centers, under a center
+        // ID of COST_ID
+        Vector cost = new DenseVector(new double[] { costs[i] }, true);
+        emitFn.emit(Pair.of(Pair.of(i, COST_ID), Pair.of(cost, 1L)));
+      }
+      increment(Counters.PRUNED_CENTERS, pruned);
+      pruned = 0;
+    }
   }
   
-  private static class LloydsCenters<V extends Vector> extends PObjectImpl<Pair<Pair<Integer, Integer>, Pair<V, Long>>, List<Centers>> {
+  private static class LloydsCenters extends PObjectImpl<Pair<Pair<Integer, Integer>, Pair<Vector, Long>>, List<Centers>> {
 
     private final int numCenters;
+    private final double[] costs;
     
-    LloydsCenters(PTable<Pair<Integer, Integer>, Pair<V, Long>> collect, int numCenters) {
+    LloydsCenters(PTable<Pair<Integer, Integer>, Pair<Vector, Long>> collect, int numCenters) {
       super(collect);
       this.numCenters = numCenters;
+      this.costs = new double[numCenters];
+    }
+    
+    /**
+     * Returns the cost of each of the centers that the iteration started from, which is
+     * only available after {@link #getValue()} has been called.
+     */
+    List<Double> getCosts() {
+      return Doubles.asList(costs.clone());
     }
 
     @Override
-    protected List<Centers> process(Iterable<Pair<Pair<Integer, Integer>, Pair<V, Long>>> values) {
-      List<Centers> centers = Lists.newArrayListWithExpectedSize(numCenters);
+    protected List<Centers> process(Iterable<Pair<Pair<Integer, Integer>, Pair<Vector, Long>>> values) {
+      List<List<Vector>> points = Lists.newArrayListWithExpectedSize(numCenters);
       for (int i = 0; i < numCenters; i++) {
-        centers.add(new Centers());
+        points.add(Lists.<Vector>newArrayList());
       }
-      for (Pair<Pair<Integer, Integer>, Pair<V, Long>> p : values) {
+      for (Pair<Pair<Integer, Integer>, Pair<Vector, Long>> p : values) {
         int centerId = p.first().first();
+        if (p.first().second() == COST_ID) {
+          costs[centerId] = p.second().first().getQuick(0);
+          continue;
+        }
         Vector c = p.second().first().divide(p.second().second()); 
-        centers.set(centerId, centers.get(centerId).extendWith(c));
+        points.get(centerId).add(c);
+      }
+      // Build each Centers once instead of copying it for every new point
+      List<Centers> centers = Lists.newArrayListWithExpectedSize(numCenters);
+      for (List<Vector> p : points) {
+        centers.add(new Centers(p));
       }
       return centers;
     }
   }
   
-  private static class ScoringFn<V extends Vector> extends DoFn<Pair<Integer, V>, Pair<Integer, Pair<V, Double>>> {
-    private final CentersIndex centers;
+  /**
+   * Scores each point by its distance to its closest candidate, and sums up the total cost of
+   * each fold as it goes. The costs are written out at the end of the map task under a key of
+   * {@code -1 - fold}, so that they can be picked out of the scores without another pass.
+   * 
+   * <p>If asked to, it also counts the points that are closest to each candidate from the same
+   * lookups, and writes the counts of each fold out along with its cost.
+   */
+  private static class ScoringFn<V extends Vector>
+      extends DoFn<Pair<Integer, V>, Pair<Integer, Pair<Vector, Double>>> {
+    private final BroadcastIndex index;
+    private final boolean countClosest;
+    private transient Scratch scratch;
+    private transient CentersIndex centers;
+    private transient double[] costs;
+    private transient long[][] counts;
+    
+    private ScoringFn(CentersIndex centers, boolean countClosest) {
+      this.index = new BroadcastIndex(centers);
+      this.countClosest = countClosest;
+    }
     
-    private ScoringFn(CentersIndex centers) {
-      this.centers = centers;
+    @Override
+    public void configure(Configuration conf) {
+      index.configure(conf);
     }
     
     @Override
-    public void process(Pair<Integer, V> in, Emitter<Pair<Integer, Pair<V, Double>>> emitter) {
-      Distances d = centers.getDistances(in.second(), true);
+    public void initialize() {
+      centers = index.get(getConfiguration());
+      scratch = new Scratch();
+      int[] numPoints = centers.getPointsPerCluster();
+      costs = new double[numPoints.length];
+      if (countClosest) {
+        counts = new long[numPoints.length][];
+        for (int i = 0; i < numPoints.length; i++) {
+          counts[i] = new long[numPoints[i]];
+        }
+      }
+    }
+    
+    @Override
+    public void process(Pair<Integer, V> in, Emitter<Pair<Integer, Pair<Vector, Double>>> emitter) {
+      Distances d = centers.getDistances(in.second(), true, scratch);
+      if (counts != null) {
+        counts[in.first()][d.closestPoints[in.first()]]++;
+      }
       double dist = d.clusterDistances[in.first()];
       if (dist > 0.0) {
-        emitter.emit(Pair.of(in.first(), Pair.of(in.second(), dist)));
+        emitter.emit(Pair.of(in.first(), Pair.<Vector, Double>of(in.second(), dist)));
+        costs[in.first()] += dist;
+      }
+    }
+    
+    @Override
+    public void cleanup(Emitter<Pair<Integer, Pair<Vector, Double>>> emitter) {
+      emitFoldTotals(costs, counts, emitter);
+    }
+  }
+  
+  /**
+   * Lowers the distance from each point to its closest candidate using only the candidates
+   * that were added on the last iteration, and sums up the total cost of each fold just like
+   * {@link ScoringFn}.
+   */
+  static class UpdateScoresFn
+      extends DoFn<Pair<Integer, Pair<Vector, Double>>, Pair<Integer, Pair<Vector, Double>>> {
+    private final BroadcastIndex index;
+    private transient Scratch scratch;
+    private transient CentersIndex added;
+    private transient double[] costs;
+    
+    UpdateScoresFn(CentersIndex added) {
+      this.index = new BroadcastIndex(added);
+    }
+    
+    @Override
+    public void configure(Configuration conf) {
+      index.configure(conf);
+    }
+    
+    @Override
+    public void initialize() {
+      added = index.get(getConfiguration());
+      scratch = new Scratch();
+      costs = new double[added.getPointsPerCluster().length];
+    }
+    
+    @Override
+    public void process(Pair<Integer, Pair<Vector, Double>> in,
+        Emitter<Pair<Integer, Pair<Vector, Double>>> emitter) {
+      Vector vec = in.second().first();
+      Distances d = added.getDistances(vec, true, scratch);
+      double dist = Math.min(in.second().second(), d.clusterDistances[in.first()]);
+      if (dist > 0.0) {
+        emitter.emit(Pair.of(in.first(), Pair.of(vec, dist)));
+        costs[in.first()] += dist;
+      }
+    }
+    
+    @Override
+    public void cleanup(Emitter<Pair<Integer, Pair<Vector, Double>>> emitter) {
+      emitFoldTotals(costs, null, emitter);
+    }
+  }
+  
+  /**
+   * Writes out the cost of each fold under a key of {@code -1 - fold}, along with a vector of
+   * the counts of the points closest to each of its candidates if they were counted.
+   */
+  private static void emitFoldTotals(double[] costs, long[][] counts,
+      Emitter<Pair<Integer, Pair<Vector, Double>>> emitter) {
+    for (int i = 0; i < costs.length; i++) {
+      Vector v = NO_POINT;
+      if (counts != null) {
+        v = new DenseVector(counts[i].length);
+        for (int j = 0; j < counts[i].length; j++) {
+          v.setQuick(j, counts[i][j]);
+          counts[i][j] = 0;
+        }
+      }
+      emitter.emit(Pair.of(-1 - i, Pair.of(v, costs[i])));
+      costs[i] = 0.0;
+    }
+  }
+  
+  /**
+   * Drops the fold costs that are written out along with the scores of the points.
+   */
+  private static class PointScoresFn extends FilterFn<Pair<Integer, Pair<Vector, Double>>> {
+    @Override
+    public boolean accept(Pair<Integer, Pair<Vector, Double>> in) {
+      return in.first() >= 0;
+    }
+  }
+  
+  /**
+   * Keeps each point with probability {@code samplesPerIteration * d^2(x) / cost}, where
+   * {@code cost} is the total cost of the point's fold against the same candidates that
+   * {@code d^2(x)} was computed with, so that {@code samplesPerIteration} points are kept from
+   * each fold on average.
+   */
+  private static class BernoulliSampleFn<V extends Vector>
+      extends DoFn<Pair<Integer, Pair<V, Double>>, Pair<Integer, V>> {
+    private final int samplesPerIteration;
+    private final double[] costs;
+    private final long seed;
+    private transient Random random;
+    
+    private BernoulliSampleFn(int samplesPerIteration, double[] costs, long seed) {
+      this.samplesPerIteration = samplesPerIteration;
+      this.costs = costs;
+      this.seed = seed;
+    }
+    
+    @Override
+    public float scaleFactor() {
+      // Indicate that the output of sampling will be on the small side
+      return 0.05f;
+    }
+    
+    @Override
+    public void initialize() {
+      // Each map task needs its own stream of random numbers
+      this.random = new Random(seed + getConfiguration().getInt("mapred.task.partition", 0));
+    }
+    
+    @Override
+    public void process(Pair<Integer, Pair<V, Double>> in, Emitter<Pair<Integer, V>> emitter) {
+      double cost = costs[in.first()];
+      double dist = in.second().second();
+      if (cost <= 0.0 || random.nextDouble() * cost < samplesPerIteration * dist) {
+        emitter.emit(Pair.of(in.first(), in.second().first()));
+      }
+    }
+  }
+  
+  /**
+   * Picks out the partial costs of each fold that were written out along with the scores
+   * of the points.
+   */
+  private static class FoldCostFn
+      extends DoFn<Pair<Integer, Pair<Vector, Double>>, Pair<Integer, Double>> {
+    @Override
+    public float scaleFactor() {
+      return 0.05f;
+    }
+    
+    @Override
+    public void process(Pair<Integer, Pair<Vector, Double>> in,
+        Emitter<Pair<Integer, Double>> emitter) {
+      if (in.first() < 0) {
+        emitter.emit(Pair.of(-1 - in.first(), in.second().second()));
+      }
+    }
+  }
+  
+  /**
+   * Picks out the counts of the points closest to each candidate that were written out along
+   * with the costs of each fold.
+   */
+  private static class FoldCountFn
+      extends DoFn<Pair<Integer, Pair<Vector, Double>>, Pair<Pair<Integer, Integer>, Long>> {
+    @Override
+    public float scaleFactor() {
+      return 0.05f;
+    }
+    
+    @Override
+    public void process(Pair<Integer, Pair<Vector, Double>> in,
+        Emitter<Pair<Pair<Integer, Integer>, Long>> emitter) {
+      if (in.first() < 0) {
+        Vector counts = in.second().first();
+        for (int j = 0; j < counts.size(); j++) {
+          long count = (long) counts.getQuick(j);
+          if (count != 0) {
+            emitter.emit(Pair.of(Pair.of(-1 - in.first(), j), count));
+          }
+        }
       }
     }
   }
   
   private static class ClosestCenterFn<V extends Vector> extends DoFn<Pair<Integer, V>, Pair<Integer, Integer>> {
-    private final CentersIndex centers;
+    private final BroadcastIndex index;
+    private transient Scratch scratch;
+    private transient CentersIndex centers;
     
     private ClosestCenterFn(CentersIndex centers) {
-      this.centers = centers;
+      this.index = new BroadcastIndex(centers);
+    }
+    
+    @Override
+    public void configure(Configuration conf) {
+      index.configure(conf);
+    }
+    
+    @Override
+    public void initialize() {
+      centers = index.get(getConfiguration());
+      scratch = new Scratch();
     }
 
     @Override
     public void process(Pair<Integer, V> in, Emitter<Pair<Integer, Integer>> emitter) {
-      Distances d = centers.getDistances(in.second(), true);
+      Distances d = centers.getDistances(in.second(), true, scratch);
       emitter.emit(Pair.of(in.first(), d.closestPoints[in.first()]));
     }
   }
   
+  /**
+   * Moves each point that is closer to one of the candidates that were chosen on the last
+   * iteration than to all of the candidates before it from its closest earlier candidate over
+   * to that new candidate. Only the new candidates are compared to every point, and the earlier
+   * ones are only searched for the points that moved. The changes to the counts are summed up
+   * inside of the map task.
+   */
+  private static class CorrectionFn<V extends Vector>
+      extends DoFn<Pair<Integer, Pair<V, Double>>, Pair<Pair<Integer, Integer>, Long>> {
+    private final BroadcastIndex previousIndex;
+    private final BroadcastIndex addedIndex;
+    private transient Scratch scratch;
+    private transient CentersIndex previous;
+    private transient CentersIndex added;
+    private transient long[][] changes;
+    
+    private CorrectionFn(CentersIndex previous, CentersIndex added) {
+      this.previousIndex = new BroadcastIndex(previous);
+      this.addedIndex = new BroadcastIndex(added);
+    }
+    
+    @Override
+    public void configure(Configuration conf) {
+      previousIndex.configure(conf);
+      addedIndex.configure(conf);
+    }
+    
+    @Override
+    public void initialize() {
+      previous = previousIndex.get(getConfiguration());
+      scratch = new Scratch();
+      added = addedIndex.get(getConfiguration());
+      int[] numPrevious = previous.getPointsPerCluster();
+      int[] numAdded = added.getPointsPerCluster();
+      changes = new long[numPrevious.length][];
+      for (int i = 0; i < numPrevious.length; i++) {
+        changes[i] = new long[numPrevious[i] + numAdded[i]];
+      }
+    }
+    
+    @Override
+    public float scaleFactor() {
+      return 0.05f;
+    }
+    
+    @Override
+    public void process(Pair<Integer, Pair<V, Double>> in,
+        Emitter<Pair<Pair<Integer, Integer>, Long>> emitter) {
+      int fold = in.first();
+      V vec = in.second().first();
+      Distances a = added.getDistances(vec, true, scratch);
+      // A point can only move if a new candidate is closer than the distance it was scored with
+      if (a.clusterDistances[fold] < in.second().second()) {
+        Distances p = previous.getDistances(vec, true, scratch);
+        // Ties go to the earlier candidate, which has the lower index
+        if (a.clusterDistances[fold] < p.clusterDistances[fold]) {
+          int[] numPrevious = previous.getPointsPerCluster();
+          changes[fold][p.closestPoints[fold]]--;
+          changes[fold][numPrevious[fold] + a.closestPoints[fold]]++;
+        }
+      }
+    }
+    
+    @Override
+    public void cleanup(Emitter<Pair<Pair<Integer, Integer>, Long>> emitter) {
+      emitCounts(changes, emitter);
+    }
+  }
+  
+  private static void emitCounts(long[][] counts,
+      Emitter<Pair<Pair<Integer, Integer>, Long>> emitter) {
+    for (int i = 0; i < counts.length; i++) {
+      for (int j = 0; j < counts[i].length; j++) {
+        if (counts[i][j] != 0) {
+          emitter.emit(Pair.of(Pair.of(i, j), counts[i][j]));
+          counts[i][j] = 0;
+        }
+      }
+    }
+  }
+  
+  /**
+   * Computes the assignments of each point, batching up the exact lookups so that each
+   * center is only read once for every {@code ASSIGNMENT_BATCH_SIZE} points.
+   */
   private static class AssignedCenterFn<V extends NamedVector> extends DoFn<V, Record> {
-    private final CentersIndex centers;
+    private final BroadcastIndex index;
+    private transient Scratch scratch;
+    private transient CentersIndex centers;
     private final List<Integer> clusterIds;
+    private final boolean approx;
+    private transient List<V> batch;
+    private long pruned;
     
-    private AssignedCenterFn(CentersIndex centers, List<Integer> clusterIds) {
-      this.centers = centers;
+    private AssignedCenterFn(CentersIndex centers, List<Integer> clusterIds, boolean approx) {
+      this.index = new BroadcastIndex(centers);
       this.clusterIds = clusterIds;
+      this.approx = approx;
     }
 
+    @Override
+    public void configure(Configuration conf) {
+      index.configure(conf);
+    }
+    
+    @Override
+    public void initialize() {
+      centers = index.get(getConfiguration());
+      scratch = new Scratch();
+      batch = Lists.newArrayListWithCapacity(ASSIGNMENT_BATCH_SIZE);
+      pruned = 0;
+    }
+    
     @Override
     public void process(V vec, Emitter<Record> emitter) {
+      if (approx) {
+        emit(vec, centers.getDistances(vec, true, scratch), emitter);
+      } else {
+        batch.add(vec);
+        if (batch.size() == ASSIGNMENT_BATCH_SIZE) {
+          flush(emitter);
+        }
+      }
+    }
+
+    private void flush(Emitter<Record> emitter) {
+      if (!batch.isEmpty()) {
+        Distances[] ds = centers.getDistances(batch, false);
+        for (int i = 0; i < ds.length; i++) {
+          emit(batch.get(i), ds[i], emitter);
+        }
+        batch.clear();
+      }
+    }
+    
+    private void emit(V vec, Distances d, Emitter<Record> emitter) {
       MLVector mlvec = VectorConvert.fromVector(vec);
-      Distances d = centers.getDistances(vec, false);
+      pruned += d.prunedCenters;
       for (int i = 0; i < d.closestPoints.length; i++) {
         Record r = new SimpleRecord(ASSIGNMENT_SPEC);
         r.set("vector_id", mlvec.getId().toString())
@@ -432,6 +1278,122 @@ public class KMeansParallel {
       }
     }
 
+    @Override
+    public void cleanup(Emitter<Record> emitter) {
+      flush(emitter);
+      increment(Counters.PRUNED_CENTERS, pruned);
+      pruned = 0;
+    }
+  }
+
+  /**
+   * Finds the closest center to each point in one shard of the centers, and emits its
+   * distance along with its index in the full list of centers.
+   */
+  private static class ShardClosestFn<V extends NamedVector>
+      extends DoFn<V, Pair<Pair<String, Integer>, Pair<Double, Integer>>> {
+    private final BroadcastIndex index;
+    private transient Scratch scratch;
+    private transient CentersIndex centers;
+    private final List<Integer> clusterings;
+    private final int offset;
+    private final boolean approx;
+    private long pruned;
+    
+    private ShardClosestFn(CentersIndex centers, List<Integer> clusterings, int offset,
+        boolean approx) {
+      this.index = new BroadcastIndex(centers);
+      this.clusterings = clusterings;
+      this.offset = offset;
+      this.approx = approx;
+    }
+    
+    @Override
+    public void configure(Configuration conf) {
+      index.configure(conf);
+    }
+    
+    @Override
+    public void initialize() {
+      centers = index.get(getConfiguration());
+      scratch = new Scratch();
+    }
+    
+    @Override
+    public float scaleFactor() {
+      return 0.1f;
+    }
+    
+    @Override
+    public void process(V vec, Emitter<Pair<Pair<String, Integer>, Pair<Double, Integer>>> emitter) {
+      Distances d = centers.getDistances(vec, approx, scratch);
+      pruned += d.prunedCenters;
+      for (int i = 0; i < d.closestPoints.length; i++) {
+        emitter.emit(Pair.of(Pair.of(vec.getName(), clusterings.get(i)),
+            Pair.of(d.clusterDistances[i], offset + d.closestPoints[i])));
+      }
+    }
+    
+    @Override
+    public void cleanup(Emitter<Pair<Pair<String, Integer>, Pair<Double, Integer>>> emitter) {
+      increment(Counters.PRUNED_CENTERS, pruned);
+      pruned = 0;
+    }
+  }
+  
+  /**
+   * Keeps the closest of the centers found in this shard and the ones before it, breaking ties
+   * in favor of the center that comes first, as a lookup over all of the centers would.
+   */
+  private static class ClosestShardFn extends DoFn<Pair<Pair<String, Integer>,
+      Iterable<Pair<Double, Integer>>>, Pair<Pair<String, Integer>, Pair<Double, Integer>>> {
+    private final int[] numResults;
+    
+    private ClosestShardFn(int[] numResults) {
+      this.numResults = numResults;
+    }
+    
+    @Override
+    public void process(Pair<Pair<String, Integer>, Iterable<Pair<Double, Integer>>> in,
+        Emitter<Pair<Pair<String, Integer>, Pair<Double, Integer>>> emitter) {
+      double distance = Double.POSITIVE_INFINITY;
+      int center = -1;
+      int found = 0;
+      for (Pair<Double, Integer> p : in.second()) {
+        double d = p.first();
+        if (center < 0 || d < distance || (d == distance && p.second() < center)) {
+          distance = d;
+          center = p.second();
+        }
+        found++;
+      }
+      int clustering = in.first().second();
+      if (found != numResults[clustering]) {
+        throw new IllegalStateException(String.format(
+            "Found %d results instead of %d for the point named '%s'; names must be unique",
+            found, numResults[clustering], in.first().first()));
+      }
+      emitter.emit(Pair.of(in.first(), Pair.of(distance, center)));
+    }
+  }
+  
+  private static class ShardAssignmentFn
+      extends MapFn<Pair<Pair<String, Integer>, Pair<Double, Integer>>, Record> {
+    private final List<Integer> clusterIds;
+    
+    private ShardAssignmentFn(List<Integer> clusterIds) {
+      this.clusterIds = clusterIds;
+    }
+    
+    @Override
+    public Record map(Pair<Pair<String, Integer>, Pair<Double, Integer>> in) {
+      Record r = new SimpleRecord(ASSIGNMENT_SPEC);
+      r.set("vector_id", in.first().first())
+       .set("cluster_id", getClusterId(in.first().second(), clusterIds))
+       .set("closest_center_id", in.second().second())
+       .set("distance", in.second().first());
+      return r;
+    }
   }
 
   private static Integer getClusterId(int index, List<Integer> clusterIds) {
@@ -443,24 +1405,34 @@ public class KMeansParallel {
   }
 
   private static class CenterCostFn<V extends Vector> extends DoFn<V, Pair<Integer, Double>> {
-    private final CentersIndex centers;
-    private final double[] currentCosts;
+    private final BroadcastIndex index;
+    private transient Scratch scratch;
+    private transient CentersIndex centers;
+    private transient double[] currentCosts;
     private final boolean approx;
+    private long pruned;
     
     private CenterCostFn(CentersIndex centers, boolean approx) {
-      this.centers = centers;
-      this.currentCosts = new double[centers.getNumCenters()];
+      this.index = new BroadcastIndex(centers);
       this.approx = approx;
     }
     
+    @Override
+    public void configure(Configuration conf) {
+      index.configure(conf);
+    }
+    
     @Override
     public void initialize() {
-      Arrays.fill(currentCosts, 0.0);
+      centers = index.get(getConfiguration());
+      scratch = new Scratch();
+      currentCosts = new double[centers.getNumCenters()];
     }
     
     @Override
     public void process(V vec, Emitter<Pair<Integer, Double>> emitter) {
-      Distances d = centers.getDistances(vec, approx);
+      Distances d = centers.getDistances(vec, approx, scratch);
+      pruned += d.prunedCenters;
       for (int i = 0; i < currentCosts.length; i++) {
         currentCosts[i] += d.clusterDistances[i];
       }
@@ -471,23 +1443,38 @@ public class KMeansParallel {
       for (int i = 0; i < currentCosts.length; i++) {
         emitter.emit(Pair.of(i, currentCosts[i]));
       }
+      increment(Counters.PRUNED_CENTERS, pruned);
+      pruned = 0;
     }
   }
 
   private static class CovarianceCentersFn<V extends Vector> extends DoFn<V, Pair<ClusterKey, V>> {
-    private final CentersIndex centers;
+    private final BroadcastIndex index;
+    private transient Scratch scratch;
+    private transient CentersIndex centers;
     private final List<Integer> clusterIds;
     private final boolean approx;
 
     public CovarianceCentersFn(CentersIndex centers, List<Integer> clusterIds, boolean approx) {
-      this.centers = centers;
+      this.index = new BroadcastIndex(centers);
       this.clusterIds = clusterIds;
       this.approx = approx;
     }
+    
+    @Override
+    public void configure(Configuration conf) {
+      index.configure(conf);
+    }
+    
+    @Override
+    public void initialize() {
+      centers = index.get(getConfiguration());
+      scratch = new Scratch();
+    }
 
     @Override
     public void process(V vec, Emitter<Pair<ClusterKey, V>> emitter) {
-      Distances d = centers.getDistances(vec, approx);
+      Distances d = centers.getDistances(vec, approx, scratch);
       for (int i = 0; i < d.closestPoints.length; i++) {
         ClusterKey key = new ClusterKey(getClusterId(i, clusterIds), d.closestPoints[i]);
         emitter.emit(Pair.of(key, vec));
@@ -0,0 +1,170 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.kmeans.parallel;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A set of hash tables over the random-projection signatures of the centers in a single
+ * clustering, where each table is keyed on a different run of {@code keyBits} bits from the
+ * signatures. A query only looks at the buckets that match its own key in each table, along
+ * with the buckets that differ from it in one of the bits whose projections were closest to
+ * zero, as in the multi-probe scheme of
+ * <a href="http://www.vldb.org/conf/2007/papers/research/p950-lv.pdf">Lv et al. (2007)</a>.
+ *
+ * <p>Each bucket is a linked list of center indices that is stored in flat arrays, so centers
+ * can be added at any time without rebuilding the tables. Probing the tables does not change
+ * them, so a set of tables that is no longer being added to can be shared between threads.
+ */
+final class ProbeTables implements Serializable {
+
+  private final int numTables;
+  private final int keyBits;
+  private final int numProbes;
+  // The most recently added center in each bucket of each table, or -1 if it is empty
+  private final int[] heads;
+  // The center added to the same bucket before each center, per table
+  private int[] next;
+  private int size;
+
+  ProbeTables(int numTables, int keyBits, int numProbes) {
+    this.numTables = numTables;
+    this.keyBits = keyBits;
+    this.numProbes = Math.min(numProbes, keyBits);
+    this.heads = new int[numTables << keyBits];
+    this.next = new int[16 * numTables];
+    Arrays.fill(heads, -1);
+  }
+
+  /**
+   * Reads the tables that were written by {@link #write(DataOutput)} from the given buffer,
+   * starting at its current position and leaving it just past the end of the tables.
+   */
+  ProbeTables(ByteBuffer buf) {
+    this.numTables = buf.getInt();
+    this.keyBits = buf.getInt();
+    this.numProbes = buf.getInt();
+    this.size = buf.getInt();
+    this.heads = new int[numTables << keyBits];
+    buf.asIntBuffer().get(heads);
+    buf.position(buf.position() + 4 * heads.length);
+    this.next = new int[Math.max(size, 16) * numTables];
+    buf.asIntBuffer().get(next, 0, size * numTables);
+    buf.position(buf.position() + 4 * size * numTables);
+  }
+
+  void write(DataOutput out) throws IOException {
+    out.writeInt(numTables);
+    out.writeInt(keyBits);
+    out.writeInt(numProbes);
+    out.writeInt(size);
+    for (int h : heads) {
+      out.writeInt(h);
+    }
+    for (int i = 0; i < size * numTables; i++) {
+      out.writeInt(next[i]);
+    }
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * Adds the next center to the tables, using the packed signature that starts at the
+   * given offset.
+   */
+  void add(long[] signatures, int offset) {
+    if ((size + 1) * numTables > next.length) {
+      next = Arrays.copyOf(next, 2 * next.length);
+    }
+    for (int t = 0; t < numTables; t++) {
+      int key = 0;
+      for (int b = 0; b < keyBits; b++) {
+        int bit = t * keyBits + b;
+        if ((signatures[offset + (bit >>> 6)] & (1L << (bit & 63))) != 0) {
+          key |= 1 << b;
+        }
+      }
+      int bucket = (t << keyBits) | key;
+      next[size * numTables + t] = heads[bucket];
+      heads[bucket] = size;
+    }
+    size++;
+  }
+
+  /**
+   * Writes the indices of the centers that share a probed bucket with the query into
+   * {@code candidates}, which must have room for {@link #size()} entries.
+   *
+   * @param projections The (unpacked) random projections of the query
+   * @param candidates The array to write the indices of the candidate centers into
+   * @param marks An array with room for {@link #size()} entries that is used to only return
+   *     each center once, by setting the entry for each center that is found to {@code stamp}
+   * @param stamp A value that is not in any of the first {@link #size()} entries of
+   *     {@code marks}
+   * @return The number of candidates that were found
+   */
+  int probe(double[] projections, int[] candidates, int[] marks, int stamp) {
+    int found = 0;
+    int[] flips = new int[numProbes];
+    for (int t = 0; t < numTables; t++) {
+      int base = t * keyBits;
+      int key = 0;
+      for (int b = 0; b < keyBits; b++) {
+        if (projections[base + b] > 0.0) {
+          key |= 1 << b;
+        }
+      }
+      found = collect((t << keyBits) | key, t, candidates, found, marks, stamp);
+      // Probe the buckets for the bits that were the least certain, smallest margin first
+      int numFlips = 0;
+      for (int b = 0; b < keyBits; b++) {
+        double margin = Math.abs(projections[base + b]);
+        int pos = Math.min(numFlips, numProbes);
+        while (pos > 0 && Math.abs(projections[base + flips[pos - 1]]) > margin) {
+          if (pos < numProbes) {
+            flips[pos] = flips[pos - 1];
+          }
+          pos--;
+        }
+        if (pos < numProbes) {
+          flips[pos] = b;
+          numFlips = Math.min(numFlips + 1, numProbes);
+        }
+      }
+      for (int p = 0; p < numFlips; p++) {
+        found = collect((t << keyBits) | (key ^ (1 << flips[p])), t, candidates, found, marks,
+            stamp);
+      }
+    }
+    return found;
+  }
+
+  private int collect(int bucket, int table, int[] candidates, int found, int[] marks,
+      int stamp) {
+    for (int j = heads[bucket]; j >= 0; j = next[j * numTables + table]) {
+      if (marks[j] != stamp) {
+        marks[j] = stamp;
+        candidates[found++] = j;
+      }
+    }
+    return found;
+  }
+}
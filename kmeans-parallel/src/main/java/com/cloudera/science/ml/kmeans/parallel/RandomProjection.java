@@ -0,0 +1,267 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.kmeans.parallel;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+
+import org.apache.mahout.math.Vector;
+
+/**
+ * The kinds of random projections that can be used to compute the signatures of the
+ * vectors in a {@link CentersIndex}. Only the signs of the projections are used, so each
+ * kind trades off how closely its hyperplanes match uniformly random ones against how
+ * much work it takes to project a vector.
+ */
+public enum RandomProjection {
+
+  /**
+   * Projects onto a dense matrix of independent Gaussian entries, which takes
+   * O(dimensions * bits) work for each dense vector.
+   */
+  GAUSSIAN {
+    @Override
+    Projector create(int dimensions, int bits, long seed) {
+      return new GaussianProjector(dimensions, bits, seed);
+    }
+  },
+
+  /**
+   * Projects onto the very sparse random matrix of
+   * <a href="http://web.stanford.edu/~hastie/Papers/Ping/KDD06_rp.pdf">Li et al. (2006)</a>,
+   * whose entries are +1 or -1 with probability 1 / (2 * sqrt(dimensions)) each, and zero
+   * otherwise. Each vector only needs about bits / sqrt(dimensions) additions per
+   * non-zero entry.
+   */
+  SPARSE {
+    @Override
+    Projector create(int dimensions, int bits, long seed) {
+      return new SparseProjector(dimensions, bits, seed);
+    }
+  },
+
+  /**
+   * Flips the signs of the vector's entries at random, applies a fast Walsh-Hadamard
+   * transform, and keeps a random subset of the results, as in the subsampled randomized
+   * Hadamard transform version of the fast Johnson-Lindenstrauss transform. This takes
+   * O(dimensions * log(dimensions)) work for each block of up to (the next power of two
+   * of) {@code dimensions} bits, so it is best suited to vectors with many dimensions.
+   */
+  HADAMARD {
+    @Override
+    Projector create(int dimensions, int bits, long seed) {
+      return new HadamardProjector(dimensions, bits, seed);
+    }
+  };
+
+  /**
+   * Creates the projection for vectors of the given dimension, using a {@code Random}
+   * that is initialized from the given seed so that it is the same wherever it is created.
+   */
+  abstract Projector create(int dimensions, int bits, long seed);
+
+  /**
+   * Computes the projections of a vector onto a fixed set of random directions.
+   */
+  abstract static class Projector {
+    abstract double[] project(Vector vec);
+  }
+
+  private static final class GaussianProjector extends Projector {
+    private final int dimensions;
+    private final int bits;
+    private final double[] projection;
+
+    GaussianProjector(int dimensions, int bits, long seed) {
+      this.dimensions = dimensions;
+      this.bits = bits;
+      this.projection = new double[dimensions * bits];
+      Random r = new Random(seed);
+      for (int i = 0; i < projection.length; i++) {
+        projection[i] = r.nextGaussian();
+      }
+    }
+
+    @Override
+    double[] project(Vector vec) {
+      double[] prod = new double[bits];
+      if (vec.isDense()) {
+        for (int i = 0; i < vec.size(); i++) {
+          double v = vec.getQuick(i);
+          if (v != 0.0) {
+            for (int j = 0; j < bits; j++) {
+              prod[j] += v * projection[i + j * dimensions];
+            }
+          }
+        }
+      } else {
+        Iterator<Vector.Element> iter = vec.iterateNonZero();
+        while (iter.hasNext()) {
+          Vector.Element e = iter.next();
+          for (int j = 0; j < bits; j++) {
+            prod[j] += e.get() * projection[e.index() + j * dimensions];
+          }
+        }
+      }
+      return prod;
+    }
+  }
+
+  private static final class SparseProjector extends Projector {
+    private final int bits;
+    // The non-zero entries for each input dimension, with the bits in [starts[i], starts[i + 1])
+    private final int[] starts;
+    private final int[] outputs;
+    private final boolean[] negative;
+
+    SparseProjector(int dimensions, int bits, long seed) {
+      this.bits = bits;
+      this.starts = new int[dimensions + 1];
+      double density = 1.0 / Math.max(3.0, Math.sqrt(dimensions));
+      Random r = new Random(seed);
+      int capacity = (int) (2 * density * dimensions * bits) + 16;
+      int[] out = new int[capacity];
+      boolean[] neg = new boolean[capacity];
+      int nnz = 0;
+      for (int i = 0; i < dimensions; i++) {
+        for (int j = 0; j < bits; j++) {
+          if (r.nextDouble() < density) {
+            if (nnz == out.length) {
+              out = Arrays.copyOf(out, 2 * nnz);
+              neg = Arrays.copyOf(neg, 2 * nnz);
+            }
+            out[nnz] = j;
+            neg[nnz] = r.nextBoolean();
+            nnz++;
+          }
+        }
+        starts[i + 1] = nnz;
+      }
+      this.outputs = Arrays.copyOf(out, nnz);
+      this.negative = Arrays.copyOf(neg, nnz);
+    }
+
+    @Override
+    double[] project(Vector vec) {
+      double[] prod = new double[bits];
+      if (vec.isDense()) {
+        for (int i = 0; i < vec.size(); i++) {
+          double v = vec.getQuick(i);
+          if (v != 0.0) {
+            add(i, v, prod);
+          }
+        }
+      } else {
+        Iterator<Vector.Element> iter = vec.iterateNonZero();
+        while (iter.hasNext()) {
+          Vector.Element e = iter.next();
+          add(e.index(), e.get(), prod);
+        }
+      }
+      return prod;
+    }
+
+    private void add(int i, double v, double[] prod) {
+      for (int k = starts[i]; k < starts[i + 1]; k++) {
+        prod[outputs[k]] += negative[k] ? -v : v;
+      }
+    }
+  }
+
+  private static final class HadamardProjector extends Projector {
+    private final int dimensions;
+    private final int bits;
+    private final int size;
+    // One set of random signs for each block of outputs
+    private final boolean[][] flips;
+    // The coordinates of each block's transform that are kept as outputs
+    private final int[][] samples;
+
+    HadamardProjector(int dimensions, int bits, long seed) {
+      this.dimensions = dimensions;
+      this.bits = bits;
+      this.size = Integer.highestOneBit(Math.max(1, dimensions - 1)) << 1;
+      int numBlocks = (bits + size - 1) / size;
+      this.flips = new boolean[numBlocks][dimensions];
+      this.samples = new int[numBlocks][];
+      Random r = new Random(seed);
+      int[] perm = new int[size];
+      for (int b = 0; b < numBlocks; b++) {
+        for (int i = 0; i < dimensions; i++) {
+          flips[b][i] = r.nextBoolean();
+        }
+        // A partial Fisher-Yates shuffle picks the coordinates without replacement
+        int count = Math.min(size, bits - b * size);
+        for (int i = 0; i < size; i++) {
+          perm[i] = i;
+        }
+        samples[b] = new int[count];
+        for (int i = 0; i < count; i++) {
+          int k = i + r.nextInt(size - i);
+          int tmp = perm[k];
+          perm[k] = perm[i];
+          perm[i] = tmp;
+          samples[b][i] = perm[i];
+        }
+      }
+    }
+
+    @Override
+    double[] project(Vector vec) {
+      double[] prod = new double[bits];
+      double[] values = new double[dimensions];
+      if (vec.isDense()) {
+        for (int i = 0; i < dimensions; i++) {
+          values[i] = vec.getQuick(i);
+        }
+      } else {
+        Iterator<Vector.Element> iter = vec.iterateNonZero();
+        while (iter.hasNext()) {
+          Vector.Element e = iter.next();
+          values[e.index()] = e.get();
+        }
+      }
+      double[] x = new double[size];
+      int out = 0;
+      for (int b = 0; b < flips.length; b++) {
+        boolean[] f = flips[b];
+        for (int i = 0; i < dimensions; i++) {
+          x[i] = f[i] ? -values[i] : values[i];
+        }
+        Arrays.fill(x, dimensions, size, 0.0);
+        transform(x);
+        for (int s : samples[b]) {
+          prod[out++] = x[s];
+        }
+      }
+      return prod;
+    }
+
+    // An in-place, unnormalized fast Walsh-Hadamard transform
+    private static void transform(double[] x) {
+      for (int h = 1; h < x.length; h <<= 1) {
+        for (int i = 0; i < x.length; i += h << 1) {
+          for (int j = i; j < i + h; j++) {
+            double a = x[j];
+            double b = x[j + h];
+            x[j] = a + b;
+            x[j + h] = a - b;
+          }
+        }
+      }
+    }
+  }
+}
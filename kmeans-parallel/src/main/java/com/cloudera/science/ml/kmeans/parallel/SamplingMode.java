@@ -0,0 +1,41 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.kmeans.parallel;
+
+/**
+ * The ways that the k-means|| initialization can choose the points that are added to
+ * the candidate centers on each iteration.
+ */
+public enum SamplingMode {
+
+  /**
+   * Takes a weighted sample of exactly {@code samplesPerIteration} points from each fold
+   * by keeping a reservoir in each map task and merging the reservoirs in the reduce phase.
+   */
+  RESERVOIR,
+
+  /**
+   * Keeps each point independently with probability {@code l * d^2(x) / cost}, as in the
+   * original description of k-means|| in Bahmani et al., where {@code l} is the number of
+   * samples per iteration and {@code cost} is the total cost of the fold with the current
+   * candidates. The number of points chosen on each iteration is random, with an expected
+   * value of {@code l}, and the sample is chosen without a reduce phase.
+   * 
+   * <p>The costs are summed up in the map tasks that score the points against the current
+   * candidates, so the scores are written out by that job and sampled in a second, map-only
+   * pass over them once the costs are known.
+   */
+  BERNOULLI
+}
@@ -0,0 +1,292 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.kmeans.parallel;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.cloudera.science.ml.core.vectors.Centers;
+import com.cloudera.science.ml.core.vectors.Vectors;
+import com.cloudera.science.ml.kmeans.parallel.CentersIndex.Distances;
+import com.cloudera.science.ml.kmeans.parallel.CentersIndex.Scratch;
+import com.google.common.collect.Lists;
+
+public class CentersIndexTest {
+
+  private final Random r = new Random(1729L);
+  
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private Vector randomVector(int dimensions) {
+    double[] v = new double[dimensions];
+    for (int i = 0; i < dimensions; i++) {
+      v[i] = r.nextGaussian();
+    }
+    return Vectors.of(v);
+  }
+
+  private List<Centers> randomCenters(int numClusterings, int numCenters, int dimensions) {
+    List<Centers> centers = Lists.newArrayList();
+    for (int i = 0; i < numClusterings; i++) {
+      List<Vector> vecs = Lists.newArrayList();
+      for (int j = 0; j < numCenters; j++) {
+        vecs.add(randomVector(dimensions));
+      }
+      centers.add(new Centers(vecs));
+    }
+    return centers;
+  }
+
+  @Test
+  public void testApproxMatchesExactWithEnoughSamples() throws Exception {
+    List<Centers> centers = randomCenters(3, 20, 10);
+    CentersIndex index = new CentersIndex(centers, 100, 20, 17L);
+    for (int i = 0; i < 50; i++) {
+      Vector v = randomVector(10);
+      Distances exact = index.getDistances(v, false);
+      Distances approx = index.getDistances(v, true);
+      assertArrayEquals(exact.closestPoints, approx.closestPoints);
+      assertArrayEquals(exact.clusterDistances, approx.clusterDistances, 1.0e-9);
+    }
+  }
+
+  @Test
+  public void testApproxIsAnUpperBound() throws Exception {
+    List<Centers> centers = randomCenters(2, 200, 20);
+    CentersIndex index = new CentersIndex(centers, 64, 8, 17L);
+    int matches = 0;
+    for (int i = 0; i < 100; i++) {
+      Vector v = randomVector(20);
+      Distances exact = index.getDistances(v, false);
+      Distances approx = index.getDistances(v, true);
+      for (int c = 0; c < centers.size(); c++) {
+        assertTrue(approx.clusterDistances[c] >= exact.clusterDistances[c] - 1.0e-9);
+        if (approx.closestPoints[c] == exact.closestPoints[c]) {
+          matches++;
+        }
+      }
+    }
+    // The signatures should find the true closest center much more often than chance
+    assertTrue("Only " + matches + " matches", matches > 40);
+  }
+
+  @Test
+  public void testProbeTables() throws Exception {
+    List<Centers> centers = randomCenters(2, 500, 20);
+    CentersIndex index = new CentersIndex(centers, 128, 8, 8, 4, RandomProjection.GAUSSIAN, 17L);
+    Scratch scratch = new Scratch();
+    int matches = 0;
+    for (int i = 0; i < 100; i++) {
+      Vector v = randomVector(20);
+      Distances exact = index.getDistances(v, false);
+      Distances approx = index.getDistances(v, true);
+      // Reusing the buffers from one query to the next doesn't change the results
+      Distances reused = index.getDistances(v, true, scratch);
+      assertArrayEquals(approx.closestPoints, reused.closestPoints);
+      assertArrayEquals(approx.clusterDistances, reused.clusterDistances, 0.0);
+      for (int c = 0; c < centers.size(); c++) {
+        assertTrue(approx.clusterDistances[c] >= exact.clusterDistances[c] - 1.0e-9);
+        if (approx.closestPoints[c] == exact.closestPoints[c]) {
+          matches++;
+        }
+      }
+    }
+    assertTrue("Only " + matches + " matches", matches > 40);
+  }
+
+  @Test
+  public void testStructuredProjections() throws Exception {
+    List<Centers> centers = randomCenters(2, 200, 50);
+    for (RandomProjection type : RandomProjection.values()) {
+      CentersIndex index = new CentersIndex(centers, 64, 8, 0, 0, type, 17L);
+      CentersIndex copy = new CentersIndex(centers, 64, 8, 0, 0, type, 17L);
+      int matches = 0;
+      for (int i = 0; i < 100; i++) {
+        Vector v = randomVector(50);
+        Distances exact = index.getDistances(v, false);
+        Distances approx = index.getDistances(v, true);
+        // The same seed should always give the same signatures
+        assertArrayEquals(approx.closestPoints, copy.getDistances(v, true).closestPoints);
+        for (int c = 0; c < centers.size(); c++) {
+          assertTrue(approx.clusterDistances[c] >= exact.clusterDistances[c] - 1.0e-9);
+          if (approx.closestPoints[c] == exact.closestPoints[c]) {
+            matches++;
+          }
+        }
+      }
+      assertTrue(type + " only had " + matches + " matches", matches > 20);
+    }
+  }
+
+  @Test
+  public void testExactPruningMatchesFullScan() throws Exception {
+    List<Centers> centers = randomCenters(2, 300, 100);
+    // Duplicate centers make sure that ties still go to the lowest index
+    List<Vector> withTies = Lists.newArrayList(centers.get(1));
+    withTies.add(withTies.get(7));
+    withTies.add(0, withTies.get(42));
+    centers.set(1, new Centers(withTies));
+    CentersIndex index = new CentersIndex(centers);
+    int pruned = 0;
+    for (int i = 0; i < 100; i++) {
+      Vector v = i % 10 == 0 ? withTies.get(i) : randomVector(100).times(0.5);
+      Vector sparse = new RandomAccessSparseVector(v);
+      Distances d = index.getDistances(v, false);
+      Distances sd = index.getDistances(sparse, false);
+      for (int c = 0; c < centers.size(); c++) {
+        int closest = 0;
+        double min = Double.POSITIVE_INFINITY;
+        for (int j = 0; j < centers.get(c).size(); j++) {
+          Vector center = centers.get(c).get(j);
+          double dist = v.getLengthSquared() + center.getLengthSquared() - 2 * v.dot(center);
+          if (dist < min) {
+            min = dist;
+            closest = j;
+          }
+        }
+        assertEquals(closest, d.closestPoints[c]);
+        assertEquals(closest, sd.closestPoints[c]);
+        assertEquals(min, d.clusterDistances[c], 1.0e-9);
+      }
+      pruned += d.prunedCenters;
+    }
+    assertTrue("Only pruned " + pruned + " centers", pruned > 0);
+  }
+
+  @Test
+  public void testBatchMatchesSingleLookups() throws Exception {
+    List<Centers> centers = randomCenters(5, 40, 300);
+    List<Vector> withTies = Lists.newArrayList(centers.get(2));
+    withTies.add(withTies.get(3));
+    centers.set(2, new Centers(withTies));
+    CentersIndex index = new CentersIndex(centers);
+    List<Vector> batch = Lists.newArrayList();
+    for (int i = 0; i < 23; i++) {
+      Vector v = i % 5 == 0 ? withTies.get(3) : randomVector(300);
+      batch.add(i % 3 == 0 ? new RandomAccessSparseVector(v) : v);
+    }
+    Distances[] ds = index.getDistances(batch, false);
+    for (int i = 0; i < batch.size(); i++) {
+      Distances d = index.getDistances(batch.get(i), false);
+      assertArrayEquals(d.closestPoints, ds[i].closestPoints);
+      assertArrayEquals(d.clusterDistances, ds[i].clusterDistances, 0.0);
+    }
+  }
+
+  @Test
+  public void testBroadcast() throws Exception {
+    List<Centers> centers = randomCenters(2, 20, 10);
+    CentersIndex index = new CentersIndex(centers, 32, 5, 4, 2, RandomProjection.GAUSSIAN, 17L);
+    Configuration conf = new Configuration();
+    conf.set("crunch.work.dir", tmp.newFolder("job1").getAbsolutePath());
+    BroadcastIndex broadcast = new BroadcastIndex(index);
+    broadcast.configure(conf);
+
+    // Only the location of the index should be serialized along with the handle
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(broadcast);
+    out.close();
+    assertTrue(bytes.size() < 1000);
+    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    BroadcastIndex copy = (BroadcastIndex) in.readObject();
+
+    CentersIndex loaded = copy.get(conf);
+    for (int i = 0; i < 20; i++) {
+      Vector v = randomVector(10);
+      for (boolean approx : new boolean[] { false, true }) {
+        Distances expected = index.getDistances(v, approx);
+        Distances actual = loaded.getDistances(v, approx);
+        assertArrayEquals(expected.closestPoints, actual.closestPoints);
+        assertArrayEquals(expected.clusterDistances, actual.clusterDistances, 0.0);
+      }
+    }
+  }
+
+  @Test
+  public void testBroadcastRewrittenForEachJob() throws Exception {
+    CentersIndex index = new CentersIndex(randomCenters(1, 10, 5));
+    BroadcastIndex broadcast = new BroadcastIndex(index);
+    File job1 = tmp.newFolder("job1");
+    Configuration conf = new Configuration();
+    conf.set("crunch.work.dir", job1.getAbsolutePath());
+    broadcast.configure(conf);
+    assertEquals(1, numIndexFiles(job1));
+
+    // A later job writes its own copy, even if the first one has been cleaned up
+    for (File f : job1.listFiles()) {
+      f.delete();
+    }
+    job1.delete();
+    File job2 = tmp.newFolder("job2");
+    Configuration conf2 = new Configuration();
+    conf2.set("crunch.work.dir", job2.getAbsolutePath());
+    broadcast.configure(conf2);
+    assertEquals(1, numIndexFiles(job2));
+  }
+
+  private static int numIndexFiles(File dir) {
+    int count = 0;
+    for (String name : dir.list()) {
+      if (name.startsWith("centers-index-")) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testLoadedIndexIsReadOnly() throws Exception {
+    CentersIndex index = new CentersIndex(randomCenters(1, 10, 5));
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    index.write(out);
+    out.close();
+    CentersIndex loaded = CentersIndex.read(ByteBuffer.wrap(bytes.toByteArray()));
+    loaded.add(randomVector(5), 0);
+  }
+  
+  @Test
+  public void testIncrementalAdd() throws Exception {
+    List<Centers> centers = randomCenters(1, 30, 5);
+    CentersIndex index = new CentersIndex(1, 5, 64, 40, 17L);
+    Vector v = randomVector(5);
+    for (Vector c : centers.get(0)) {
+      index.add(c, 0);
+      Distances exact = index.getDistances(v, false);
+      Distances approx = index.getDistances(v, true);
+      assertEquals(exact.closestPoints[0], approx.closestPoints[0]);
+    }
+  }
+}
@@ -15,16 +15,24 @@
 package com.cloudera.science.ml.kmeans.parallel;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 
 import org.apache.crunch.PCollection;
+import org.apache.crunch.PTable;
+import org.apache.crunch.Pair;
 import org.apache.crunch.impl.mem.MemPipeline;
+import org.apache.crunch.types.avro.Avros;
+import org.apache.mahout.math.NamedVector;
 import org.apache.mahout.math.Vector;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.cloudera.science.ml.core.records.Record;
 import com.cloudera.science.ml.core.vectors.Centers;
 import com.cloudera.science.ml.core.vectors.Vectors;
 import com.cloudera.science.ml.core.vectors.Weighted;
@@ -32,7 +40,10 @@ import com.cloudera.science.ml.kmeans.core.KMeans;
 import com.cloudera.science.ml.parallel.crossfold.Crossfold;
 import com.cloudera.science.ml.parallel.types.MLAvros;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 public class KMeansParallelTest {
   
@@ -80,6 +91,198 @@ public class KMeansParallelTest {
     assertEquals(ImmutableList.of(67.0, 6.0, 4.0), costs);
   }
   
+  @Test
+  public void testPersistedDistancesMatchRecomputed() throws Exception {
+    List<Vector> points = Lists.newArrayList();
+    Random rand = new Random(1729L);
+    for (int i = 0; i < 500; i++) {
+      points.add(Vectors.of(rand.nextGaussian() + 5 * (i % 3), rand.nextGaussian()));
+    }
+    PCollection<Vector> input = MemPipeline.typedCollectionOf(MLAvros.vector(), points);
+    List<Vector> initialPoints = ImmutableList.of(points.get(0));
+    // Few enough candidates that the approximate lookups compare every point to all of them,
+    // so updating the persisted distances gives the same scores as recomputing them
+    List<List<Weighted<Vector>>> recomputed = new KMeansParallel(new Random(17L), 128, 32)
+        .initialization(input, 3, 8, initialPoints, new Crossfold(2, 1729L));
+    List<List<Weighted<Vector>>> persisted = new KMeansParallel(new Random(17L), 128, 32)
+        .initialization(input, 3, 8, initialPoints, new Crossfold(2, 1729L),
+            InitializationOptions.builder().persistDistances(true).build());
+    assertEquals(recomputed, persisted);
+  }
+  
+  @Test
+  public void testUpdateScoresOnlyLowersDistances() throws Exception {
+    PTable<Integer, Pair<Vector, Double>> scores = MemPipeline.typedTableOf(
+        Avros.tableOf(Avros.ints(), Avros.pairs(MLAvros.vector(), Avros.doubles())),
+        0, Pair.of(Vectors.of(0.0, 0.0), 4.0),
+        0, Pair.of(Vectors.of(3.0, 0.0), 1.0),
+        0, Pair.of(Vectors.of(1.0, 0.0), 9.0),
+        1, Pair.of(Vectors.of(0.0, 0.0), 2.0));
+    CentersIndex added = new CentersIndex(ImmutableList.of(
+        new Centers(Vectors.of(1.0, 0.0)), new Centers(Vectors.of(10.0, 0.0))));
+    Map<Integer, Double> costs = Maps.newHashMap();
+    List<Pair<Integer, Pair<Vector, Double>>> updated = Lists.newArrayList();
+    for (Pair<Integer, Pair<Vector, Double>> p : scores.parallelDo(
+        new KMeansParallel.UpdateScoresFn(added), scores.getPTableType()).materialize()) {
+      if (p.first() < 0) {
+        costs.put(-1 - p.first(), p.second().second());
+      } else {
+        updated.add(p);
+      }
+    }
+    // Each distance is the lower of the old one and the one to the added candidate, and the
+    // point that is itself a candidate now is dropped
+    assertEquals(ImmutableList.of(
+        Pair.of(0, Pair.of(Vectors.of(0.0, 0.0), 1.0)),
+        Pair.of(0, Pair.of(Vectors.of(3.0, 0.0), 1.0)),
+        Pair.of(1, Pair.of(Vectors.of(0.0, 0.0), 2.0))), updated);
+    assertEquals(ImmutableMap.of(0, 2.0, 1, 2.0), costs);
+  }
+  
+  @Test
+  public void testBernoulliSamplesPerIteration() throws Exception {
+    List<Vector> points = Lists.newArrayList();
+    Random rand = new Random(1729L);
+    for (int i = 0; i < 2000; i++) {
+      points.add(Vectors.of(rand.nextGaussian() + 5 * (i % 3), rand.nextGaussian()));
+    }
+    PCollection<Vector> input = MemPipeline.typedCollectionOf(MLAvros.vector(), points);
+    List<Vector> initialPoints = ImmutableList.of(points.get(0));
+    InitializationOptions options = InitializationOptions.builder()
+        .sampling(SamplingMode.BERNOULLI).build();
+    int samplesPerIteration = 20;
+    int numRuns = 20;
+    for (int numIterations = 1; numIterations <= 4; numIterations++) {
+      long candidates = 0;
+      for (int seed = 0; seed < numRuns; seed++) {
+        candidates += new KMeansParallel(new Random(seed), 128, 32).initialization(input,
+            numIterations, samplesPerIteration, initialPoints, new Crossfold(1), options)
+            .get(0).size();
+      }
+      // Every iteration should add samplesPerIteration candidates on average, not just the
+      // first one
+      double expected = 1 + numIterations * samplesPerIteration;
+      assertEquals(expected, (double) candidates / numRuns, 0.1 * expected);
+    }
+  }
+  
+  @Test
+  public void testFusedWeightsMatchSeparatePass() throws Exception {
+    List<Vector> points = Lists.newArrayList();
+    Random rand = new Random(1729L);
+    for (int i = 0; i < 500; i++) {
+      points.add(Vectors.of(rand.nextGaussian() + 5 * (i % 3), rand.nextGaussian()));
+    }
+    PCollection<Vector> input = MemPipeline.typedCollectionOf(MLAvros.vector(), points);
+    List<Vector> initialPoints = ImmutableList.of(points.get(0));
+    for (boolean persistDistances : new boolean[] { false, true }) {
+      // Few enough candidates that the approximate lookups compare every point to all of them
+      InitializationOptions.Builder options = InitializationOptions.builder()
+          .persistDistances(persistDistances);
+      List<List<Weighted<Vector>>> separate = new KMeansParallel(new Random(17L), 128, 32)
+          .initialization(input, 3, 8, initialPoints, new Crossfold(2, 1729L), options.build());
+      List<List<Weighted<Vector>>> fused = new KMeansParallel(new Random(17L), 128, 32)
+          .initialization(input, 3, 8, initialPoints, new Crossfold(2, 1729L),
+              options.fuseWeights(true).build());
+      assertEquals(separate, fused);
+    }
+  }
+  
+  @Test
+  public void testAdaptiveStopping() throws Exception {
+    List<Vector> initialPoints = ImmutableList.of(Vectors.of(1.0, 1.0));
+
+    // Once each fold has a copy of all four distinct points, the cost can't go any lower
+    List<List<Weighted<Vector>>> points = kmp.initialization(vecs, 20, 2, initialPoints,
+        new Crossfold(2, 1729L), InitializationOptions.builder().minImprovement(0.01).build());
+    double totalWeight = 0.0;
+    for (List<Weighted<Vector>> fold : points) {
+      assertTrue(fold.size() < 20);
+      for (Weighted<Vector> wv : fold) {
+        totalWeight += wv.weight();
+      }
+    }
+    assertEquals(16.0, totalWeight, 0.0);
+    
+    points = kmp.initialization(vecs, 20, 2, initialPoints,
+        new Crossfold(2, 1729L), InitializationOptions.builder().maxCandidates(3).build());
+    for (List<Weighted<Vector>> fold : points) {
+      assertTrue(fold.size() >= 3 && fold.size() <= 4);
+    }
+    
+    // Stopping early falls back to weighting the candidates in a separate pass
+    points = kmp.initialization(vecs, 20, 2, initialPoints, new Crossfold(2, 1729L),
+        InitializationOptions.builder().maxCandidates(3).fuseWeights(true).build());
+    totalWeight = 0.0;
+    for (List<Weighted<Vector>> fold : points) {
+      assertTrue(fold.size() >= 3 && fold.size() <= 4);
+      for (Weighted<Vector> wv : fold) {
+        totalWeight += wv.weight();
+      }
+    }
+    assertEquals(16.0, totalWeight, 0.0);
+  }
+  
+  @Test
+  public void testShardedAssignments() throws Exception {
+    List<NamedVector> named = Lists.newArrayList();
+    int i = 0;
+    for (Vector v : vecs.materialize()) {
+      named.add(new NamedVector(v.plus(0.1 * i), "p" + i));
+      i++;
+    }
+    PCollection<NamedVector> input = MemPipeline.typedCollectionOf(MLAvros.namedVector(), named);
+    List<Centers> centers = ImmutableList.of(
+        new Centers(ImmutableList.of(Vectors.of(1.0, 1.0), Vectors.of(5.0, 4.0))),
+        new Centers(ImmutableList.of(Vectors.of(1.0, 1.0), Vectors.of(2.0, 1.0),
+            Vectors.of(6.0, 4.0), Vectors.of(4.0, 3.0), Vectors.of(2.0, 1.0))));
+    Set<String> expected = Sets.newHashSet();
+    for (Record r : kmp.computeClusterAssignments(input, centers, null).get().materialize()) {
+      expected.add(r.toString());
+    }
+    Set<String> sharded = Sets.newHashSet();
+    for (Record r : kmp.computeClusterAssignments(input, centers, null, false, 2)
+        .get().materialize()) {
+      sharded.add(r.toString());
+    }
+    assertEquals(32, expected.size());
+    assertEquals(expected, sharded);
+  }
+  
+  @Test
+  public void testShardedAssignmentTies() throws Exception {
+    PCollection<NamedVector> input = MemPipeline.typedCollectionOf(MLAvros.namedVector(),
+        new NamedVector(Vectors.of(0.0, 0.0), "p0"),
+        new NamedVector(Vectors.of(3.0, 0.0), "p1"));
+    // The first point is as close to center 1 in the first shard as to centers 2 and 3 in the
+    // second, and the second point is as close to centers 0 and 1 as to center 2
+    List<Centers> centers = ImmutableList.of(new Centers(ImmutableList.of(
+        Vectors.of(5.0, 0.0), Vectors.of(1.0, 0.0), Vectors.of(1.0, 0.0), Vectors.of(-1.0, 0.0))));
+    Set<String> expected = Sets.newHashSet();
+    for (Record r : kmp.computeClusterAssignments(input, centers, null).get().materialize()) {
+      expected.add(r.toString());
+    }
+    Set<String> sharded = Sets.newHashSet();
+    for (Record r : kmp.computeClusterAssignments(input, centers, null, false, 2)
+        .get().materialize()) {
+      sharded.add(r.toString());
+      assertEquals(r.getString("vector_id").equals("p0") ? 1 : 0,
+          r.getInteger("closest_center_id").intValue());
+    }
+    assertEquals(2, sharded.size());
+    assertEquals(expected, sharded);
+  }
+  
+  @Test(expected = IllegalStateException.class)
+  public void testShardedAssignmentsRejectDuplicateNames() throws Exception {
+    PCollection<NamedVector> input = MemPipeline.typedCollectionOf(MLAvros.namedVector(),
+        new NamedVector(Vectors.of(0.0, 0.0), "p"),
+        new NamedVector(Vectors.of(3.0, 0.0), "p"));
+    List<Centers> centers = ImmutableList.of(new Centers(ImmutableList.of(
+        Vectors.of(5.0, 0.0), Vectors.of(1.0, 0.0), Vectors.of(-1.0, 0.0))));
+    kmp.computeClusterAssignments(input, centers, null, false, 2).get().materialize();
+  }
+  
   @Test
   public void testLloyds() throws Exception {
     List<Centers> centers = ImmutableList.of(
@@ -95,4 +298,27 @@ public class KMeansParallelTest {
     res = kmp.lloydsAlgorithm(vecs, res, 1, false);
     assertEquals(expected, res);
   }
+  
+  @Test
+  public void testLloydsCostHistory() throws Exception {
+    List<Centers> centers = ImmutableList.of(
+        new Centers(ImmutableList.of(Vectors.of(1.0, 1.0), Vectors.of(5.0, 4.0))));
+    List<List<Double>> history = Lists.newArrayList();
+    List<Centers> res = kmp.lloydsAlgorithm(vecs, centers, 2, false, history);
+    assertEquals(ImmutableList.of(
+        new Centers(ImmutableList.of(Vectors.of(1.5, 1.0), Vectors.of(4.5, 3.5)))), res);
+    assertEquals(ImmutableList.of(ImmutableList.of(12.0), ImmutableList.of(6.0)), history);
+  }
+
+  @Test
+  public void testLloydsFinalCost() throws Exception {
+    List<Centers> centers = ImmutableList.of(
+        new Centers(ImmutableList.of(Vectors.of(1.0, 1.0), Vectors.of(5.0, 4.0))));
+    List<List<Double>> history = Lists.newArrayList();
+    List<Centers> res = kmp.lloydsAlgorithm(vecs, centers, 2, false, history, true);
+    assertEquals(3, history.size());
+    assertEquals(ImmutableList.of(12.0), history.get(0));
+    assertEquals(ImmutableList.of(6.0), history.get(1));
+    assertEquals(kmp.getCosts(vecs, res, false).getValue(), history.get(2));
+  }
 }
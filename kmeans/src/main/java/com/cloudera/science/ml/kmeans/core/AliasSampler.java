@@ -0,0 +1,86 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.kmeans.core;
+
+import java.util.Random;
+
+/**
+ * Samples indices in proportion to a fixed array of weights in constant time per
+ * draw, using Vose's version of Walker's alias method.
+ */
+final class AliasSampler {
+
+  private final double[] probabilities;
+  private final int[] aliases;
+
+  /**
+   * Builds the alias table for the given non-negative weights. If every weight is
+   * zero, the indices are sampled uniformly.
+   */
+  AliasSampler(double[] weights) {
+    int n = weights.length;
+    this.probabilities = new double[n];
+    this.aliases = new int[n];
+    double total = 0.0;
+    for (double w : weights) {
+      total += w;
+    }
+    double[] scaled = new double[n];
+    int[] small = new int[n];
+    int[] large = new int[n];
+    int numSmall = 0;
+    int numLarge = 0;
+    for (int i = 0; i < n; i++) {
+      scaled[i] = total > 0.0 ? weights[i] * n / total : 1.0;
+      if (scaled[i] < 1.0) {
+        small[numSmall++] = i;
+      } else {
+        large[numLarge++] = i;
+      }
+    }
+    while (numSmall > 0 && numLarge > 0) {
+      int s = small[--numSmall];
+      int l = large[--numLarge];
+      probabilities[s] = scaled[s];
+      aliases[s] = l;
+      scaled[l] = (scaled[l] + scaled[s]) - 1.0;
+      if (scaled[l] < 1.0) {
+        small[numSmall++] = l;
+      } else {
+        large[numLarge++] = l;
+      }
+    }
+    // Whatever is left over is only off from 1.0 because of rounding error
+    while (numLarge > 0) {
+      int l = large[--numLarge];
+      probabilities[l] = 1.0;
+      aliases[l] = l;
+    }
+    while (numSmall > 0) {
+      int s = small[--numSmall];
+      probabilities[s] = 1.0;
+      aliases[s] = s;
+    }
+  }
+
+  /**
+   * Returns a random index, using a single draw from the given {@code Random}.
+   */
+  int sample(Random random) {
+    double u = random.nextDouble() * probabilities.length;
+    int i = Math.min((int) u, probabilities.length - 1);
+    return (u - i < probabilities[i]) ? i : aliases[i];
+  }
+}
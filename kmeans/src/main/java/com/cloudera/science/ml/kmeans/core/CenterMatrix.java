@@ -0,0 +1,275 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.kmeans.core;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.Vector;
+
+import com.cloudera.science.ml.core.vectors.Centers;
+import com.cloudera.science.ml.core.vectors.Vectors;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+/**
+ * A mutable, row-major matrix of cluster centers that the in-memory k-means algorithms
+ * work against during their iterations. Each row also has an associated weight, so that
+ * an instance can be used to accumulate the weighted sums of the points assigned to each
+ * center before they are turned into centroids.
+ */
+final class CenterMatrix {
+
+  private final int size;
+  private final int dimension;
+  private final double[] values;
+  private final double[] weights;
+  private final double[] lengths;
+
+  CenterMatrix(int size, int dimension) {
+    this.size = size;
+    this.dimension = dimension;
+    this.values = new double[size * dimension];
+    this.weights = new double[size];
+    this.lengths = new double[size];
+  }
+
+  CenterMatrix(Centers centers, int dimension) {
+    this(centers.size(), dimension);
+    for (int c = 0; c < size; c++) {
+      Vector v = centers.get(c);
+      Preconditions.checkArgument(v.size() == dimension,
+          String.format("Expected a center of size %d but found %d", dimension, v.size()));
+      System.arraycopy(Vectors.toArray(v), 0, values, c * dimension, dimension);
+      updateLength(c);
+    }
+  }
+
+  int size() {
+    return size;
+  }
+
+  int dimension() {
+    return dimension;
+  }
+
+  double[] values() {
+    return values;
+  }
+
+  double weight(int c) {
+    return weights[c];
+  }
+
+  /**
+   * Returns the squared distance from the given point to the given center.
+   */
+  double distanceSquared(PackedPoints points, int index, int c) {
+    double[] px = points.values();
+    int a = index * dimension;
+    int b = c * dimension;
+    double d = 0.0;
+    for (int j = 0; j < dimension; j++) {
+      double diff = px[a + j] - values[b + j];
+      d += diff * diff;
+    }
+    return d;
+  }
+
+  /**
+   * Returns the squared distance between a center in this instance and a center
+   * in the other one.
+   */
+  double distanceSquared(int c, CenterMatrix other, int o) {
+    int a = c * dimension;
+    int b = o * dimension;
+    double d = 0.0;
+    for (int j = 0; j < dimension; j++) {
+      double diff = values[a + j] - other.values[b + j];
+      d += diff * diff;
+    }
+    return d;
+  }
+
+  /**
+   * Returns the index of the center that is closest to the given point, with ties going to
+   * the center with the lowest index.
+   */
+  int closest(PackedPoints points, int index) {
+    return closest(points, index, null);
+  }
+
+  /**
+   * Returns the index of the center that is closest to the given point and, if
+   * {@code distances} is not null, stores the squared distance to it in
+   * {@code distances[index]}.
+   */
+  int closest(PackedPoints points, int index, double[] distances) {
+    double len = Math.sqrt(points.lengthSquared(index));
+    int best = -1;
+    double min = Double.POSITIVE_INFINITY;
+    for (int c = 0; c < size; c++) {
+      // (|x| - |c|)^2 is a lower bound on the distance, and it is much cheaper to compute
+      double diff = len - lengths[c];
+      if (diff * diff > min * (1.0 + 1.0e-9)) {
+        continue;
+      }
+      double d = distanceSquared(points, index, c);
+      if (d < min) {
+        min = d;
+        best = c;
+      }
+    }
+    if (distances != null) {
+      distances[index] = min;
+    }
+    return best;
+  }
+
+  /**
+   * Returns the sum of the squared distances between each center in this instance and
+   * the corresponding center in the other one.
+   */
+  double shift(CenterMatrix other) {
+    double d = 0.0;
+    for (int c = 0; c < size; c++) {
+      d += distanceSquared(c, other, c);
+    }
+    return d;
+  }
+
+  /**
+   * Returns true if any two of the centers in this instance are identical, which happens
+   * when two clusters end up with exactly the same points assigned to them.
+   */
+  boolean hasDuplicates() {
+    for (int c = 1; c < size; c++) {
+      for (int o = 0; o < c; o++) {
+        if (lengths[c] == lengths[o] && sameRow(c, o)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private boolean sameRow(int c, int o) {
+    int a = c * dimension;
+    int b = o * dimension;
+    for (int j = 0; j < dimension; j++) {
+      if (values[a + j] != values[b + j]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Zeroes out the values and weights of this instance so that it can be used to
+   * accumulate a new set of weighted sums.
+   */
+  void clear() {
+    Arrays.fill(values, 0.0);
+    Arrays.fill(weights, 0.0);
+  }
+
+  /**
+   * Adds the weighted value of the given point to the sum for the given center, only
+   * visiting the non-zero values of the point if it is stored sparsely.
+   */
+  void add(int c, PackedPoints points, int index) {
+    double w = points.weight(index);
+    double[] px = points.values();
+    int a = index * dimension;
+    int b = c * dimension;
+    int[] rowStarts = points.rowStarts();
+    if (rowStarts != null) {
+      int[] columns = points.columns();
+      for (int nz = rowStarts[index]; nz < rowStarts[index + 1]; nz++) {
+        int j = columns[nz];
+        values[b + j] += w * px[a + j];
+      }
+    } else {
+      for (int j = 0; j < dimension; j++) {
+        values[b + j] += w * px[a + j];
+      }
+    }
+    weights[c] += w;
+  }
+
+  /**
+   * Adds a precomputed weighted sum of points, stored in {@code sum} starting at
+   * {@code offset}, and their total weight to the sum for the given center.
+   */
+  void add(int c, double[] sum, int offset, double weight) {
+    int b = c * dimension;
+    for (int j = 0; j < dimension; j++) {
+      values[b + j] += sum[offset + j];
+    }
+    weights[c] += weight;
+  }
+
+  /**
+   * Adds the weighted sums accumulated in another instance to the sums in this one.
+   */
+  void addAll(CenterMatrix other) {
+    for (int j = 0; j < values.length; j++) {
+      values[j] += other.values[j];
+    }
+    for (int c = 0; c < size; c++) {
+      weights[c] += other.weights[c];
+    }
+  }
+
+  /**
+   * Converts the weighted sums accumulated in this instance into centroids. Any center
+   * that did not have any points assigned to it is copied from the {@code previous} centers.
+   */
+  void finish(CenterMatrix previous) {
+    for (int c = 0; c < size; c++) {
+      int offset = c * dimension;
+      if (weights[c] > 0.0) {
+        for (int j = offset; j < offset + dimension; j++) {
+          values[j] /= weights[c];
+        }
+      } else {
+        System.arraycopy(previous.values, offset, values, offset, dimension);
+      }
+      updateLength(c);
+    }
+  }
+
+  void updateLength(int c) {
+    double len = 0.0;
+    for (int j = c * dimension; j < (c + 1) * dimension; j++) {
+      len += values[j] * values[j];
+    }
+    lengths[c] = Math.sqrt(len);
+  }
+
+  /**
+   * Converts the rows of this instance into a new {@code Centers} object.
+   */
+  Centers toCenters() {
+    List<Vector> vecs = Lists.newArrayListWithCapacity(size);
+    for (int c = 0; c < size; c++) {
+      double[] v = new double[dimension];
+      System.arraycopy(values, c * dimension, v, 0, dimension);
+      vecs.add(new DenseVector(v, true));
+    }
+    return new Centers(vecs);
+  }
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.kmeans.core;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+
+/**
+ * Splits a range of point indices into a fixed number of contiguous chunks and runs a
+ * task over each of them, optionally in parallel on a shared {@code Executor}.
+ *
+ * <p>The chunk boundaries only depend on the number of points, so results that are
+ * combined in chunk order do not depend on how many threads are available. The calling
+ * thread runs every chunk that has not been started by the time it gets to it, which lets
+ * many concurrent k-means runs share one bounded pool without any risk of deadlock: idle
+ * threads pick up chunks from whichever runs are busy.
+ */
+final class Chunks {
+
+  /**
+   * The task that is run on each chunk.
+   */
+  interface Task {
+    void run(int chunk, int start, int end);
+  }
+
+  private static final int MIN_CHUNK_SIZE = 256;
+  private static final int MAX_CHUNKS = 64;
+
+  /**
+   * Returns the number of chunks that a range of the given size is split into.
+   */
+  static int count(int size) {
+    return Math.max(1, Math.min(MAX_CHUNKS, (size + MIN_CHUNK_SIZE - 1) / MIN_CHUNK_SIZE));
+  }
+
+  /**
+   * Runs the task over each chunk of the range {@code [0, size)}, returning once
+   * every chunk is complete.
+   *
+   * @param executor The executor to run the chunks on, or null to run them serially
+   * @param size The number of items in the range
+   * @param task The task to run on each chunk
+   */
+  static void run(Executor executor, int size, Task task) {
+    run(executor, count(size), size, task);
+  }
+
+  /**
+   * Runs the task over each item in the range {@code [0, size)} as a chunk of its own,
+   * for tasks where each item is a large amount of work.
+   *
+   * @param executor The executor to run the items on, or null to run them serially
+   * @param size The number of items in the range
+   * @param task The task to run on each item
+   */
+  static void runEach(Executor executor, int size, Task task) {
+    if (size > 0) {
+      run(executor, size, size, task);
+    }
+  }
+
+  private static void run(Executor executor, final int numChunks, int size, final Task task) {
+    if (executor == null || numChunks == 1) {
+      for (int c = 0; c < numChunks; c++) {
+        task.run(c, start(c, numChunks, size), start(c + 1, numChunks, size));
+      }
+      return;
+    }
+
+    List<FutureTask<Void>> futures = Lists.newArrayListWithCapacity(numChunks);
+    for (int c = 0; c < numChunks; c++) {
+      final int chunk = c;
+      final int start = start(c, numChunks, size);
+      final int end = start(c + 1, numChunks, size);
+      futures.add(new FutureTask<Void>(new Callable<Void>() {
+        @Override
+        public Void call() {
+          task.run(chunk, start, end);
+          return null;
+        }
+      }));
+    }
+    for (int c = 1; c < numChunks; c++) {
+      try {
+        executor.execute(futures.get(c));
+      } catch (RejectedExecutionException e) {
+        break; // the calling thread will pick up the rest
+      }
+    }
+    // A FutureTask that is already running or done ignores a second call to run()
+    for (FutureTask<Void> future : futures) {
+      future.run();
+    }
+    for (FutureTask<Void> future : futures) {
+      try {
+        future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw Throwables.propagate(e);
+      } catch (ExecutionException e) {
+        throw Throwables.propagate(e.getCause());
+      }
+    }
+  }
+
+  /**
+   * Returns the index of the first item in the given chunk.
+   */
+  static int start(int chunk, int numChunks, int size) {
+    return (int) ((long) size * chunk / numChunks);
+  }
+
+  private Chunks() {}
+}
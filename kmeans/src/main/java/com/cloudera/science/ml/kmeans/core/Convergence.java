@@ -0,0 +1,93 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.kmeans.core;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * The tolerances that an in-memory {@link KMeansUpdateStrategy} uses to decide that
+ * it can stop before it has run its maximum number of iterations.
+ */
+public final class Convergence {
+
+  /**
+   * Only stops once an iteration leaves every center where it was, which does not
+   * change the results of the algorithm.
+   */
+  public static final Convergence EXACT = new Convergence(0.0, 0.0);
+
+  /**
+   * Never stops because of the cost or the movement of the centers. The Lloyd's, Elkan,
+   * and Yinyang strategies still stop once an iteration does not change the assignment of
+   * any point, since further iterations could not change the centers; the other
+   * strategies always run the maximum number of iterations.
+   */
+  public static final Convergence NEVER = new Convergence(0.0, -1.0);
+
+  private final double costTolerance;
+  private final double shiftTolerance;
+
+  /**
+   * Creates a new instance.
+   *
+   * @param costTolerance Stop once an iteration reduces the cost (the weighted sum of squared
+   *     distances from each point to its closest center) by less than this fraction
+   * @param shiftTolerance Stop once the sum of the squared distances that the centers moved
+   *     during an iteration is no more than this value
+   */
+  public static Convergence of(double costTolerance, double shiftTolerance) {
+    Preconditions.checkArgument(costTolerance >= 0.0, "Cost tolerance must be non-negative");
+    Preconditions.checkArgument(shiftTolerance >= 0.0, "Shift tolerance must be non-negative");
+    return new Convergence(costTolerance, shiftTolerance);
+  }
+
+  private Convergence(double costTolerance, double shiftTolerance) {
+    this.costTolerance = costTolerance;
+    this.shiftTolerance = shiftTolerance;
+  }
+
+  public double getCostTolerance() {
+    return costTolerance;
+  }
+
+  public double getShiftTolerance() {
+    return shiftTolerance;
+  }
+
+  /**
+   * Returns true if the stopping rule depends on the cost of each iteration.
+   */
+  boolean usesCost() {
+    return costTolerance > 0.0;
+  }
+
+  /**
+   * Returns true if an iteration that changed the cost from {@code previousCost} to
+   * {@code cost} and moved the centers by a total squared distance of {@code shift}
+   * means that the algorithm has converged.
+   */
+  boolean isConverged(double previousCost, double cost, double shift) {
+    if (shift <= shiftTolerance) {
+      return true;
+    }
+    return usesCost() && !Double.isInfinite(previousCost) &&
+        previousCost - cost <= costTolerance * previousCost;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("Convergence(cost=%s, shift=%s)", costTolerance, shiftTolerance);
+  }
+}
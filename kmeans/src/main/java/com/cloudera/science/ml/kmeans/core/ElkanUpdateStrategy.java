@@ -0,0 +1,221 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.kmeans.core;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+import com.cloudera.science.ml.core.vectors.Centers;
+
+/**
+ * An accelerated version of Lloyd's algorithm that uses the triangle inequality to
+ * avoid most point-to-center distance calculations, as described in
+ * <a href="http://cseweb.ucsd.edu/~elkan/kmeansicml03.pdf">Elkan (2003)</a>.
+ *
+ * <p>Each point keeps an upper bound on the distance to its assigned center and a lower
+ * bound on its distance to every other center, and the bounds are only tightened when the
+ * inter-center distances cannot rule a center out. The centers that are returned are
+ * identical to the ones computed by {@link LloydsUpdateStrategy} for the same inputs,
+ * at the cost of O(n * k) extra memory for the lower bounds.
+ */
+public class ElkanUpdateStrategy extends LloydsUpdateStrategy {
+
+  public ElkanUpdateStrategy(int numIterations) {
+    this(numIterations, null);
+  }
+
+  /**
+   * Creates an instance that updates the bounds of each chunk of points in parallel on
+   * the given {@code Executor}; see {@link LloydsUpdateStrategy#LloydsUpdateStrategy(int, Executor)}.
+   *
+   * @param numIterations The number of iterations to run
+   * @param executor The executor to run the chunks on, or null to run serially
+   */
+  public ElkanUpdateStrategy(int numIterations, Executor executor) {
+    super(numIterations, executor);
+  }
+
+  /**
+   * Creates an instance that stops early once the given {@code Convergence} criteria are
+   * met; see {@link LloydsUpdateStrategy#LloydsUpdateStrategy(int, Executor, Convergence)}.
+   *
+   * @param numIterations The maximum number of iterations to run
+   * @param executor The executor to run the chunks on, or null to run serially
+   * @param convergence The criteria for stopping early
+   */
+  public ElkanUpdateStrategy(int numIterations, Executor executor, Convergence convergence) {
+    super(numIterations, executor, convergence);
+  }
+
+  /**
+   * Starts a run of the iterations with a fresh set of bounds.
+   */
+  @Override
+  Iterations start(final PackedPoints points, Centers centers, CenterMatrix current) {
+    final int n = points.size();
+    final CenterMatrix[] partials = newPartials(points, current);
+    final int k = current.size();
+    final int[] assignments = new int[n];
+    final double[] upper = new double[n];
+    final double[][] lower = new double[n][k];
+    final double[][] halfDistances = new double[k][k];
+    final double[] nearest = new double[k];
+    final double[] shifts = new double[k];
+    final double[] distances = getConvergence().usesCost() ? new double[n] : null;
+    final int[] changes = new int[Chunks.count(n)];
+    return new Iterations() {
+      private double cost = Double.POSITIVE_INFINITY;
+      private boolean first = true;
+
+      @Override
+      boolean next(final CenterMatrix current, CenterMatrix next) {
+        if (first) {
+          first = false;
+          Chunks.run(getExecutor(), n, new Chunks.Task() {
+            @Override
+            public void run(int chunk, int start, int end) {
+              for (int i = start; i < end; i++) {
+                initBounds(points, i, current, assignments, upper, lower[i]);
+              }
+            }
+          });
+        } else {
+          centerDistances(current, halfDistances, nearest);
+          Arrays.fill(changes, 0);
+          Chunks.run(getExecutor(), n, new Chunks.Task() {
+            @Override
+            public void run(int chunk, int start, int end) {
+              for (int i = start; i < end; i++) {
+                if (!prunes(upper[i], nearest[assignments[i]])) {
+                  int a = assignments[i];
+                  assign(points, i, current, assignments, upper, lower[i], halfDistances);
+                  if (assignments[i] != a) {
+                    changes[chunk]++;
+                  }
+                }
+              }
+            }
+          });
+          if (sum(changes) == 0) {
+            return false;
+          }
+        }
+
+        if (distances != null) {
+          Chunks.run(getExecutor(), n, new Chunks.Task() {
+            @Override
+            public void run(int chunk, int start, int end) {
+              for (int i = start; i < end; i++) {
+                distances[i] = current.distanceSquared(points, i, assignments[i]);
+              }
+            }
+          });
+          cost = LloydsUpdateStrategy.cost(points, distances);
+        }
+        centroids(points, assignments, current, next, partials);
+        for (int c = 0; c < k; c++) {
+          shifts[c] = Math.sqrt(current.distanceSquared(c, next, c));
+        }
+        Chunks.run(getExecutor(), n, new Chunks.Task() {
+          @Override
+          public void run(int chunk, int start, int end) {
+            for (int i = start; i < end; i++) {
+              upper[i] += shifts[assignments[i]];
+              double[] lb = lower[i];
+              for (int c = 0; c < k; c++) {
+                lb[c] = Math.max(0.0, lb[c] - shifts[c] - SLACK * lb[c]);
+              }
+            }
+          }
+        });
+        return true;
+      }
+
+      @Override
+      double cost() {
+        return cost;
+      }
+    };
+  }
+
+  private static void initBounds(PackedPoints points, int i, CenterMatrix centers,
+      int[] assignments, double[] upper, double[] lower) {
+    int best = -1;
+    double min = Double.POSITIVE_INFINITY;
+    for (int c = 0; c < lower.length; c++) {
+      double d = centers.distanceSquared(points, i, c);
+      lower[c] = Math.sqrt(d);
+      if (d < min) {
+        min = d;
+        best = c;
+      }
+    }
+    assignments[i] = best;
+    upper[i] = lower[best];
+  }
+
+  private static void assign(PackedPoints points, int i, CenterMatrix centers,
+      int[] assignments, double[] upper, double[] lower, double[][] halfDistances) {
+    int a = assignments[i];
+    double u = upper[i];
+    double min = Double.NaN;
+    boolean tight = false;
+    for (int c = 0; c < lower.length; c++) {
+      if (c == a || prunes(u, lower[c]) || prunes(u, halfDistances[a][c])) {
+        continue;
+      }
+      if (!tight) {
+        min = centers.distanceSquared(points, i, a);
+        u = Math.sqrt(min);
+        lower[a] = u;
+        tight = true;
+        if (prunes(u, lower[c]) || prunes(u, halfDistances[a][c])) {
+          continue;
+        }
+      }
+      double d = centers.distanceSquared(points, i, c);
+      lower[c] = Math.sqrt(d);
+      // Ties go to the lowest index, just like CenterMatrix.closest
+      if (d < min || (d == min && c < a)) {
+        min = d;
+        a = c;
+        u = lower[c];
+      }
+    }
+    assignments[i] = a;
+    upper[i] = u;
+  }
+
+  /**
+   * Fills in half of the distance between every pair of centers, along with half of
+   * the distance from each center to its nearest neighbor.
+   */
+  private static void centerDistances(CenterMatrix centers, double[][] halfDistances,
+      double[] nearest) {
+    int k = centers.size();
+    for (int c = 0; c < k; c++) {
+      nearest[c] = Double.POSITIVE_INFINITY;
+    }
+    for (int c = 0; c < k; c++) {
+      for (int o = c + 1; o < k; o++) {
+        double half = 0.5 * Math.sqrt(centers.distanceSquared(c, centers, o));
+        halfDistances[c][o] = half;
+        halfDistances[o][c] = half;
+        nearest[c] = Math.min(nearest[c], half);
+        nearest[o] = Math.min(nearest[o], half);
+      }
+    }
+  }
+}
@@ -16,6 +16,7 @@ package com.cloudera.science.ml.kmeans.core;
 
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Executor;
 
 import org.apache.mahout.math.Vector;
 import org.slf4j.Logger;
@@ -39,6 +40,7 @@ public class KMeans {
   
   private final KMeansInitStrategy initStrategy;
   private final KMeansUpdateStrategy updateStrategy;
+  private final Executor executor;
   
   /**
    * Constructor that uses the k-means++ initialization strategy and
@@ -57,8 +59,24 @@ public class KMeans {
   public KMeans(
       KMeansInitStrategy initStrategy,
       KMeansUpdateStrategy updateStrategy) {
+    this(initStrategy, updateStrategy, null);
+  }
+  
+  /**
+   * Creates an in-memory k-means execution engine whose initialization strategy
+   * splits its work across the given {@code Executor}.
+   * 
+   * @param initStrategy The initialization strategy for the k-means algorithm
+   * @param updateStrategy The update strategy for the k-means algorithm
+   * @param executor The executor for the initialization strategy, or null to run serially
+   */
+  public KMeans(
+      KMeansInitStrategy initStrategy,
+      KMeansUpdateStrategy updateStrategy,
+      Executor executor) {
     this.initStrategy = Preconditions.checkNotNull(initStrategy);
     this.updateStrategy = Preconditions.checkNotNull(updateStrategy);
+    this.executor = executor;
   }
   
   /**
@@ -85,8 +103,23 @@ public class KMeans {
    * @return The {@code Centers} created from the computations
    */
   public <V extends Vector> Centers compute(List<Weighted<V>> points, int numClusters, Random random) {
+    return compute(PackedPoints.of(points), numClusters, random);
+  }
+  
+  /**
+   * Apply the configured k-means initialization strategy followed by
+   * the k-means update strategy for the given packed points to yield the given number
+   * of clusters. Packing the points once and reusing them across runs avoids converting
+   * the points on every call.
+   * 
+   * @param points The packed weighted points to cluster
+   * @param numClusters Number of clusters to create
+   * @param random The random number generator to use
+   * @return The {@code Centers} created from the computations
+   */
+  public Centers compute(PackedPoints points, int numClusters, Random random) {
     Preconditions.checkArgument(numClusters > 0);
-    Centers initial = initStrategy.apply(points, numClusters, random);
+    Centers initial = initStrategy.apply(points, numClusters, random, executor);
     Centers updated = updateStrategy.update(points, initial);
     if (initial.size() != updated.size()) {
       LOG.warn(String.format(
@@ -17,7 +17,9 @@ package com.cloudera.science.ml.kmeans.core;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.io.Writer;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 import org.apache.mahout.math.Vector;
 import org.slf4j.Logger;
@@ -26,7 +28,6 @@ import org.slf4j.LoggerFactory;
 import com.cloudera.science.ml.core.vectors.Centers;
 import com.cloudera.science.ml.core.vectors.Weighted;
 import com.google.common.base.Charsets;
-import com.google.common.base.Joiner;
 import com.google.common.collect.Lists;
 import com.google.common.io.Files;
 
@@ -39,10 +40,8 @@ public class KMeansEvaluation {
 
   private static final Logger LOG = LoggerFactory.getLogger(KMeansEvaluation.class);
   
-  private static final Joiner NEWLINE_JOINER = Joiner.on('\n');
-  
   private final List<Centers> testCenters;
-  private final List<Weighted<Vector>> testPoints;
+  private final PackedPoints testPoints;
   private final List<Centers> trainCenters;
   private final File detailsFile;
   
@@ -62,11 +61,26 @@ public class KMeansEvaluation {
    */
   public KMeansEvaluation(List<Centers> testCenters, List<Weighted<Vector>> testPoints,
       List<Centers> trainCenters, String detailsFileName) {
+    this(testCenters, PackedPoints.of(testPoints), trainCenters, detailsFileName, null);
+  }
+  
+  /**
+   * Construct a new evaluation instance that evaluates each pair of clusterings in
+   * parallel on the given {@code Executor}.
+   * 
+   * @param testCenters The centers of the clusters for the test sketch data
+   * @param testPoints The packed test sketch data
+   * @param trainCenters The centers of the clusters for the train sketch data
+   * @param detailsFileName An optional file name to write detailed cluster statistics to
+   * @param executor The executor to run the evaluations on, or null to run them serially
+   */
+  public KMeansEvaluation(List<Centers> testCenters, PackedPoints testPoints,
+      List<Centers> trainCenters, String detailsFileName, Executor executor) {
     this.testCenters = testCenters;
     this.testPoints = testPoints;
     this.trainCenters = trainCenters;
     this.detailsFile = detailsFileName == null ? null : new File(detailsFileName);
-    init();
+    init(executor);
   }
   
   public void writeStatsToFile(File file) throws IOException {
@@ -105,73 +119,128 @@ public class KMeansEvaluation {
     return stablePoints;
   }
   
-  private void init() {
-    predictionStrengths = Lists.newArrayListWithExpectedSize(testCenters.size());
-    trainCosts = Lists.newArrayListWithExpectedSize(testCenters.size());
-    testCosts = Lists.newArrayListWithExpectedSize(testCenters.size());
-    stableClusters = Lists.newArrayListWithExpectedSize(testCenters.size());
-    stablePoints = Lists.newArrayListWithExpectedSize(testCenters.size());
-    
-    for (int i = 0; i < testCenters.size(); i++) {
-      Centers test = testCenters.get(i);
-      Centers train = trainCenters.get(i);
-      double trainCost = 0.0;
-      double testCost = 0.0;
-      double[][] assignments = new double[test.size()][train.size()];
-      double totalPoints = 0.0;
-      for (Weighted<Vector> wv : testPoints) {
-        double wt = wv.weight();
-        totalPoints += wt;
-        Vector v = wv.thing();
-        int testId = test.indexOfClosest(v);
-        testCost += wt * v.getDistanceSquared(test.get(testId));
-        int trainId = train.indexOfClosest(wv.thing());
-        trainCost += wt * v.getDistanceSquared(train.get(trainId));
-        assignments[testId][trainId] += wt;
-      }
-      trainCosts.add(trainCost);
-      testCosts.add(testCost);
-      
-      double minScore = Double.POSITIVE_INFINITY;
-      double points = 0;
-      double clusters = 0;
-      List<String> details = Lists.newArrayList();
-      for (int j = 0; j < assignments.length; j++) {
-        double[] assignment = assignments[j];
-        double total = 0.0;
-        double same = 0.0;
-        for (double a : assignment) {
-          total += a;
-          same += a * (a - 1);
-        }
-        double score = total > 1 ? same / (total * (total - 1)) : 1.0;
-        // Only consider clusters that contain a non-trivial number of obs
-        if (total > assignment.length && score < minScore) {
-          minScore = score;
-        }
-        if (score > 0.8) { // stability threshold
-          clusters++;
-          points += total;
-        }
-        if (detailsFile != null) {
-          details.add(String.format("%d,%d,%d,%.4f", i, j,
-              (int) total, score));
+  private void init(Executor executor) {
+    final Stats[] stats = new Stats[testCenters.size()];
+    Chunks.runEach(executor, stats.length, new Chunks.Task() {
+      @Override
+      public void run(int chunk, int start, int end) {
+        for (int i = start; i < end; i++) {
+          stats[i] = evaluate(i);
         }
       }
-      predictionStrengths.add(minScore);
-      stableClusters.add(clusters / assignments.length);
-      stablePoints.add(points / totalPoints);
+    });
+
+    predictionStrengths = Lists.newArrayListWithExpectedSize(stats.length);
+    trainCosts = Lists.newArrayListWithExpectedSize(stats.length);
+    testCosts = Lists.newArrayListWithExpectedSize(stats.length);
+    stableClusters = Lists.newArrayListWithExpectedSize(stats.length);
+    stablePoints = Lists.newArrayListWithExpectedSize(stats.length);
+    for (Stats s : stats) {
+      predictionStrengths.add(s.predictionStrength);
+      trainCosts.add(s.trainCost);
+      testCosts.add(s.testCost);
+      stableClusters.add(s.stableClusters);
+      stablePoints.add(s.stablePoints);
+    }
+    if (detailsFile != null) {
+      writeDetails(stats);
+    }
+  }
+
+  private Stats evaluate(int id) {
+    Stats stats = new Stats();
+    CenterMatrix test = new CenterMatrix(testCenters.get(id), testPoints.dimension());
+    CenterMatrix train = new CenterMatrix(trainCenters.get(id), testPoints.dimension());
+    int n = testPoints.size();
+    int[] testIds = new int[n];
+    int[] trainIds = new int[n];
+    double[] distances = new double[n];
+    double totalPoints = 0.0;
+    for (int i = 0; i < n; i++) {
+      double wt = testPoints.weight(i);
+      totalPoints += wt;
+      testIds[i] = test.closest(testPoints, i, distances);
+      stats.testCost += wt * distances[i];
+      trainIds[i] = train.closest(testPoints, i, distances);
+      stats.trainCost += wt * distances[i];
+    }
+
+    // Group the points by their test cluster with a counting sort, and then tally
+    // the weight of each group's points in each train cluster
+    int[] starts = new int[test.size() + 1];
+    for (int i = 0; i < n; i++) {
+      starts[testIds[i] + 1]++;
+    }
+    for (int j = 0; j < test.size(); j++) {
+      starts[j + 1] += starts[j];
+    }
+    int[] order = new int[n];
+    int[] next = starts.clone();
+    for (int i = 0; i < n; i++) {
+      order[next[testIds[i]]++] = i;
+    }
+    double[] overlap = new double[train.size()];
+
+    double minScore = Double.POSITIVE_INFINITY;
+    double points = 0;
+    double clusters = 0;
+    StringBuilder details = new StringBuilder();
+    for (int j = 0; j < test.size(); j++) {
+      double total = 0.0;
+      for (int p = starts[j]; p < starts[j + 1]; p++) {
+        int i = order[p];
+        overlap[trainIds[i]] += testPoints.weight(i);
+        total += testPoints.weight(i);
+      }
+      double same = 0.0;
+      for (int p = starts[j]; p < starts[j + 1]; p++) {
+        int trainId = trainIds[order[p]];
+        double a = overlap[trainId];
+        same += a * (a - 1);
+        overlap[trainId] = 0.0;
+      }
+      double score = total > 1 ? same / (total * (total - 1)) : 1.0;
+      // Only consider clusters that contain a non-trivial number of obs
+      if (total > train.size() && score < minScore) {
+        minScore = score;
+      }
+      if (score > 0.8) { // stability threshold
+        clusters++;
+        points += total;
+      }
       if (detailsFile != null) {
-        try {
-          if (i == 0) {
-            Files.write("ClusteringId,CenterId,NumPoints,PredictionStrength\n", detailsFile,
-                Charsets.UTF_8);
-          }
-          Files.append(NEWLINE_JOINER.join(details) + '\n', detailsFile, Charsets.UTF_8);
-        } catch (IOException e) {
-          LOG.warn("Exception writing evaluation details file: {}", detailsFile, e);
+        details.append(String.format("%d,%d,%d,%.4f\n", id, j, (int) total, score));
+      }
+    }
+    stats.predictionStrength = minScore;
+    stats.stableClusters = clusters / test.size();
+    stats.stablePoints = points / totalPoints;
+    stats.details = details.toString();
+    return stats;
+  }
+
+  private void writeDetails(Stats[] stats) {
+    try {
+      Writer writer = Files.newWriter(detailsFile, Charsets.UTF_8);
+      try {
+        writer.write("ClusteringId,CenterId,NumPoints,PredictionStrength\n");
+        for (Stats s : stats) {
+          writer.write(s.details);
         }
+      } finally {
+        writer.close();
       }
+    } catch (IOException e) {
+      LOG.warn("Exception writing evaluation details file: {}", detailsFile, e);
     }
   }
+
+  private static class Stats {
+    private double trainCost;
+    private double testCost;
+    private double predictionStrength;
+    private double stableClusters;
+    private double stablePoints;
+    private String details;
+  }
 }
@@ -14,15 +14,14 @@
  */
 package com.cloudera.science.ml.kmeans.core;
 
-import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Executor;
 
 import org.apache.mahout.math.Vector;
 
 import com.cloudera.science.ml.core.vectors.Centers;
 import com.cloudera.science.ml.core.vectors.Weighted;
-import com.google.common.base.Function;
 import com.google.common.collect.Lists;
 
 /**
@@ -38,15 +37,8 @@ public enum KMeansInitStrategy {
    */
   RANDOM {
     @Override
-    public <V extends Vector> Centers apply(List<Weighted<V>> points, int numClusters, Random random) {
-      return new Centers(Lists.transform(
-          Weighted.sample(points, numClusters, random),
-          new Function<Weighted<V>, Vector>() {
-            @Override
-            public Vector apply(Weighted<V> wt) {
-              return wt.thing();
-            }
-          }));
+    public Centers apply(PackedPoints points, int numClusters, Random random, Executor executor) {
+      return toCenters(points, sampleIndices(points, numClusters, random));
     }
   },
   
@@ -57,28 +49,22 @@ public enum KMeansInitStrategy {
    */
   PLUS_PLUS {
     @Override
-    public <V extends Vector> Centers apply(List<Weighted<V>> points, int numClusters, Random random) {
-      if (random == null) {
-        random = new Random();
-      }
-      Centers centers = RANDOM.apply(points, 1, random);
-      double[] cumulativeScores = new double[points.size() + 1];
-      for (int i = 1; i < numClusters; i++) {
-        cumulativeScores[0] = 0;
-        for (int j = 0; j < points.size(); j++) {
-          Weighted<V> wv = points.get(j);
-          double score = centers.getDistanceSquared(wv.thing()) * wv.weight();
-          cumulativeScores[j + 1] = cumulativeScores[j] + score;
-        }
-        double r = cumulativeScores[points.size()] * random.nextDouble();
-        int next = Arrays.binarySearch(cumulativeScores, r);
-        int index = (next > 0) ? next - 1 : -2 - next;
-        while (index > 0 && centers.contains(points.get(index).thing())) {
-          index--;
-        }
-        centers = centers.extendWith(points.get(index).thing());
-      }
-      return centers;
+    public Centers apply(PackedPoints points, int numClusters, Random random, Executor executor) {
+      return plusPlus(points, numClusters, 1, random, executor);
+    }
+  },
+  
+  /**
+   * The "greedy" variant of <i>k-means++</i> from the same paper, which samples
+   * 2 + ln(k) candidates for each new center and keeps the one that most reduces
+   * the cost of the clustering. Each step is slower, but the initial centers are
+   * usually better.
+   */
+  GREEDY_PLUS_PLUS {
+    @Override
+    public Centers apply(PackedPoints points, int numClusters, Random random, Executor executor) {
+      return plusPlus(points, numClusters, PlusPlusSeeding.defaultNumTrials(numClusters),
+          random, executor);
     }
   };
 
@@ -90,5 +76,68 @@ public enum KMeansInitStrategy {
    * @param random The {@code Random} to use
    * @return A new {@code Centers} instance created using this instance
    */
-  public abstract <V extends Vector> Centers apply(List<Weighted<V>> points, int numClusters, Random random);
+  public <V extends Vector> Centers apply(List<Weighted<V>> points, int numClusters, Random random) {
+    return apply(PackedPoints.of(points), numClusters, random);
+  }
+  
+  /**
+   * Use this instance to create the initial {@code Centers} from a set of points that
+   * have already been packed into a {@link PackedPoints} instance.
+   * 
+   * @param points The candidate points for the cluster
+   * @param numClusters The number of points in the center (i.e., the "k" in "k-means")
+   * @param random The {@code Random} to use
+   * @return A new {@code Centers} instance created using this instance
+   */
+  public Centers apply(PackedPoints points, int numClusters, Random random) {
+    return apply(points, numClusters, random, null);
+  }
+  
+  /**
+   * Use this instance to create the initial {@code Centers} from a set of packed points,
+   * running the distance calculations for each chunk of points on the given
+   * {@code Executor}.
+   * 
+   * @param points The candidate points for the cluster
+   * @param numClusters The number of points in the center (i.e., the "k" in "k-means")
+   * @param random The {@code Random} to use
+   * @param executor The executor to run the chunks on, or null to run serially
+   * @return A new {@code Centers} instance created using this instance
+   */
+  public abstract Centers apply(PackedPoints points, int numClusters, Random random,
+      Executor executor);
+  
+  private static Centers plusPlus(PackedPoints points, int numClusters, int numTrials,
+      Random random, Executor executor) {
+    if (random == null) {
+      random = new Random();
+    }
+    int first = sampleIndices(points, 1, random).get(0);
+    return toCenters(points,
+        PlusPlusSeeding.choose(points, first, numClusters, numTrials, random, executor));
+  }
+  
+  /**
+   * Randomly chooses the indices of the given number of points, favoring points with
+   * higher weights.
+   */
+  private static List<Integer> sampleIndices(PackedPoints points, int size, Random random) {
+    List<Weighted<Integer>> indices = Lists.newArrayListWithCapacity(points.size());
+    for (int i = 0; i < points.size(); i++) {
+      indices.add(new Weighted<Integer>(i, points.weight(i)));
+    }
+    List<Integer> sampled = Lists.newArrayList();
+    for (Weighted<Integer> wi : Weighted.sample(indices, size, random)) {
+      sampled.add(wi.thing());
+    }
+    return sampled;
+  }
+  
+  private static Centers toCenters(PackedPoints points, List<Integer> indices) {
+    List<Vector> centers = Lists.newArrayListWithCapacity(indices.size());
+    for (int index : indices) {
+      centers.add(points.get(index));
+    }
+    return new Centers(centers);
+  }
 }
@@ -26,4 +26,14 @@ import com.cloudera.science.ml.core.vectors.Weighted;
  */
 public interface KMeansUpdateStrategy {
   <V extends Vector> Centers update(List<Weighted<V>> points, Centers centers);
+  
+  /**
+   * Updates the given centers against points that have already been packed into
+   * a {@link PackedPoints} instance.
+   * 
+   * @param points The packed points
+   * @param centers The initial centers
+   * @return The updated centers
+   */
+  Centers update(PackedPoints points, Centers centers);
 }
@@ -0,0 +1,265 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.kmeans.core;
+
+/**
+ * A kd-tree over a set of {@link PackedPoints} that stores the bounding box, total weight,
+ * weighted sum, and weighted sum of squared lengths of the points in each node. It is
+ * used to run the filtering algorithm from
+ * <a href="http://www.cs.umd.edu/~mount/Projects/KMeans/pami02.pdf">Kanungo et al. (2002)</a>,
+ * which assigns whole nodes to a center at once when every other center can be ruled out
+ * for the node's bounding box.
+ *
+ * <p>The tree only depends on the points, so it can be built once and shared by any
+ * number of concurrent k-means runs over them.
+ */
+final class KdTree {
+
+  private static final int LEAF_SIZE = 16;
+
+  private final PackedPoints points;
+  private final int dimension;
+  // The indices of the points, ordered so that each node covers a contiguous range
+  private final int[] order;
+  private final int[] starts;
+  private final int[] ends;
+  private final int[] lefts;
+  private final int[] rights;
+  private final double[] lows;
+  private final double[] highs;
+  private final double[] sums;
+  private final double[] weights;
+  private final double[] sumSquares;
+  private int numNodes;
+  private int maxDepth;
+
+  KdTree(PackedPoints points) {
+    this.points = points;
+    this.dimension = points.dimension();
+    int n = points.size();
+    this.order = new int[n];
+    for (int i = 0; i < n; i++) {
+      order[i] = i;
+    }
+    // Only ranges of more than LEAF_SIZE points are split in half, so every leaf
+    // has at least LEAF_SIZE / 2 points
+    int capacity = 2 * (n / (LEAF_SIZE / 2)) + 1;
+    this.starts = new int[capacity];
+    this.ends = new int[capacity];
+    this.lefts = new int[capacity];
+    this.rights = new int[capacity];
+    this.lows = new double[capacity * dimension];
+    this.highs = new double[capacity * dimension];
+    this.sums = new double[capacity * dimension];
+    this.weights = new double[capacity];
+    this.sumSquares = new double[capacity];
+    build(0, n, 0);
+  }
+
+  private int build(int start, int end, int depth) {
+    int node = numNodes++;
+    maxDepth = Math.max(maxDepth, depth);
+    starts[node] = start;
+    ends[node] = end;
+    lefts[node] = -1;
+    rights[node] = -1;
+    int offset = node * dimension;
+    double[] px = points.values();
+    for (int j = 0; j < dimension; j++) {
+      lows[offset + j] = Double.POSITIVE_INFINITY;
+      highs[offset + j] = Double.NEGATIVE_INFINITY;
+    }
+    for (int p = start; p < end; p++) {
+      int i = order[p];
+      double w = points.weight(i);
+      int a = i * dimension;
+      for (int j = 0; j < dimension; j++) {
+        double x = px[a + j];
+        lows[offset + j] = Math.min(lows[offset + j], x);
+        highs[offset + j] = Math.max(highs[offset + j], x);
+        sums[offset + j] += w * x;
+      }
+      weights[node] += w;
+      sumSquares[node] += w * points.lengthSquared(i);
+    }
+
+    int split = -1;
+    double width = 0.0;
+    for (int j = 0; j < dimension; j++) {
+      if (highs[offset + j] - lows[offset + j] > width) {
+        width = highs[offset + j] - lows[offset + j];
+        split = j;
+      }
+    }
+    if (end - start > LEAF_SIZE && split >= 0) {
+      int mid = (start + end) >>> 1;
+      select(start, end, mid, split);
+      lefts[node] = build(start, mid, depth + 1);
+      rights[node] = build(mid, end, depth + 1);
+    }
+    return node;
+  }
+
+  /**
+   * Reorders the given range of points so that the point at index {@code k} has the value
+   * it would have if the range were sorted by the given coordinate, with no larger values
+   * before it and no smaller values after it.
+   */
+  private void select(int start, int end, int k, int j) {
+    double[] px = points.values();
+    int lo = start;
+    int hi = end - 1;
+    while (lo < hi) {
+      double pivot = px[order[(lo + hi) >>> 1] * dimension + j];
+      int a = lo;
+      int b = hi;
+      while (a <= b) {
+        while (px[order[a] * dimension + j] < pivot) {
+          a++;
+        }
+        while (px[order[b] * dimension + j] > pivot) {
+          b--;
+        }
+        if (a <= b) {
+          int tmp = order[a];
+          order[a++] = order[b];
+          order[b--] = tmp;
+        }
+      }
+      if (k <= b) {
+        hi = b;
+      } else if (k >= a) {
+        lo = a;
+      } else {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Runs one pass of the filtering algorithm, adding the weighted sum of the points that
+   * are closest to each of the {@code centers} into the corresponding row of {@code next}.
+   *
+   * @param centers The current centers
+   * @param next The matrix to accumulate the weighted sums into
+   * @return The weighted sum of the squared distances from each point to its closest center
+   */
+  double filter(CenterMatrix centers, CenterMatrix next) {
+    int k = centers.size();
+    int[][] candidates = new int[maxDepth + 2][k];
+    for (int c = 0; c < k; c++) {
+      candidates[0][c] = c;
+    }
+    return points.size() == 0 ? 0.0 : filter(0, candidates, k, 0, centers, next);
+  }
+
+  private double filter(int node, int[][] candidates, int numCandidates, int depth,
+      CenterMatrix centers, CenterMatrix next) {
+    int[] cands = candidates[depth];
+    if (numCandidates == 1) {
+      return addNode(node, cands[0], centers, next);
+    }
+    if (lefts[node] < 0) {
+      double cost = 0.0;
+      for (int p = starts[node]; p < ends[node]; p++) {
+        int i = order[p];
+        int best = -1;
+        double min = Double.POSITIVE_INFINITY;
+        for (int t = 0; t < numCandidates; t++) {
+          double d = centers.distanceSquared(points, i, cands[t]);
+          if (d < min) {
+            min = d;
+            best = cands[t];
+          }
+        }
+        next.add(best, points, i);
+        cost += points.weight(i) * min;
+      }
+      return cost;
+    }
+
+    int closest = closestToMidpoint(node, cands, numCandidates, centers);
+    int[] kept = candidates[depth + 1];
+    int numKept = 0;
+    for (int t = 0; t < numCandidates; t++) {
+      if (cands[t] == closest || !isFarther(node, cands[t], closest, centers)) {
+        kept[numKept++] = cands[t];
+      }
+    }
+    if (numKept == 1) {
+      return addNode(node, closest, centers, next);
+    }
+    return filter(lefts[node], candidates, numKept, depth + 1, centers, next) +
+        filter(rights[node], candidates, numKept, depth + 1, centers, next);
+  }
+
+  private int closestToMidpoint(int node, int[] cands, int numCandidates,
+      CenterMatrix centers) {
+    double[] cv = centers.values();
+    int offset = node * dimension;
+    int best = -1;
+    double min = Double.POSITIVE_INFINITY;
+    for (int t = 0; t < numCandidates; t++) {
+      int b = cands[t] * dimension;
+      double d = 0.0;
+      for (int j = 0; j < dimension; j++) {
+        double diff = 0.5 * (lows[offset + j] + highs[offset + j]) - cv[b + j];
+        d += diff * diff;
+      }
+      if (d < min) {
+        min = d;
+        best = cands[t];
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Returns true if center {@code c} is farther than center {@code closest} from every
+   * point in the node's bounding box, which only needs to be checked at the corner of the
+   * box that is furthest in the direction from {@code closest} to {@code c}.
+   */
+  private boolean isFarther(int node, int c, int closest, CenterMatrix centers) {
+    double[] cv = centers.values();
+    int offset = node * dimension;
+    int a = c * dimension;
+    int b = closest * dimension;
+    double dc = 0.0;
+    double dclosest = 0.0;
+    for (int j = 0; j < dimension; j++) {
+      double v = (cv[a + j] > cv[b + j]) ? highs[offset + j] : lows[offset + j];
+      double diff = cv[a + j] - v;
+      dc += diff * diff;
+      diff = cv[b + j] - v;
+      dclosest += diff * diff;
+    }
+    return dc > dclosest * (1.0 + LloydsUpdateStrategy.SLACK);
+  }
+
+  private double addNode(int node, int c, CenterMatrix centers, CenterMatrix next) {
+    int offset = node * dimension;
+    next.add(c, sums, offset, weights[node]);
+    double[] cv = centers.values();
+    int b = c * dimension;
+    double dot = 0.0;
+    double len = 0.0;
+    for (int j = 0; j < dimension; j++) {
+      dot += cv[b + j] * sums[offset + j];
+      len += cv[b + j] * cv[b + j];
+    }
+    // The sum of w * |x - c|^2 over the node, expanded in terms of the stored sums
+    return Math.max(0.0, sumSquares[node] - 2.0 * dot + weights[node] * len);
+  }
+}
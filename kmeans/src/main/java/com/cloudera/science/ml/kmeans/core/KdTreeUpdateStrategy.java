@@ -0,0 +1,85 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.kmeans.core;
+
+import com.cloudera.science.ml.core.vectors.Centers;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * Runs Lloyd's algorithm using the kd-tree filtering algorithm of
+ * <a href="http://www.cs.umd.edu/~mount/Projects/KMeans/pami02.pdf">Kanungo et al. (2002)</a>,
+ * which is much faster than checking every point against every center when the points
+ * have a low number of dimensions (roughly, fewer than 20).
+ *
+ * <p>The kd-tree for a {@link PackedPoints} instance is built the first time that it is
+ * updated and then reused by every later run over the same instance, so clustering a
+ * sketch many times (e.g., for different values of K or several random restarts) only
+ * pays for building the tree once. The centers are the same as the ones computed by
+ * {@link LloydsUpdateStrategy} up to rounding error.
+ */
+public class KdTreeUpdateStrategy extends LloydsUpdateStrategy {
+
+  // Keyed on the identity of each set of points, and released along with them
+  private final LoadingCache<PackedPoints, KdTree> trees = CacheBuilder.newBuilder()
+      .weakKeys()
+      .build(new CacheLoader<PackedPoints, KdTree>() {
+        @Override
+        public KdTree load(PackedPoints points) {
+          return new KdTree(points);
+        }
+      });
+
+  public KdTreeUpdateStrategy(int numIterations) {
+    this(numIterations, Convergence.EXACT);
+  }
+
+  /**
+   * Creates an instance that stops before running {@code numIterations} iterations once
+   * the given {@code Convergence} criteria are met.
+   *
+   * @param numIterations The maximum number of iterations to run
+   * @param convergence The criteria for stopping early
+   */
+  public KdTreeUpdateStrategy(int numIterations, Convergence convergence) {
+    super(numIterations, null, convergence);
+  }
+
+  /**
+   * Starts a run of the iterations over the kd-tree for the given points, building it if
+   * this is the first run over them.
+   */
+  @Override
+  Iterations start(PackedPoints points, Centers centers, CenterMatrix current) {
+    final KdTree tree = trees.getUnchecked(points);
+    return new Iterations() {
+      private double cost = Double.POSITIVE_INFINITY;
+
+      @Override
+      boolean next(CenterMatrix current, CenterMatrix next) {
+        next.clear();
+        cost = tree.filter(current, next);
+        next.finish(current);
+        return true;
+      }
+
+      @Override
+      double cost() {
+        return cost;
+      }
+    };
+  }
+}
@@ -14,51 +14,285 @@
  */
 package com.cloudera.science.ml.kmeans.core;
 
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Executor;
 
+import org.apache.mahout.math.DenseVector;
 import org.apache.mahout.math.Vector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.cloudera.science.ml.core.vectors.Centers;
 import com.cloudera.science.ml.core.vectors.Weighted;
-import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
+import com.google.common.base.Preconditions;
 
 /**
  *
  */
 public class LloydsUpdateStrategy implements KMeansUpdateStrategy {
 
+  private static final Logger LOG = LoggerFactory.getLogger(LloydsUpdateStrategy.class);
+
+  // Relative slack applied to the bounds of the accelerated strategies so that rounding
+  // error never prunes a center that an exhaustive search would have chosen
+  static final double SLACK = 1.0e-9;
+  
   private final int numIterations;
+  private final Executor executor;
+  private final Convergence convergence;
   
   public LloydsUpdateStrategy(int numIterations) {
+    this(numIterations, null);
+  }
+  
+  /**
+   * Creates an instance that splits the points into chunks that are assigned and summed
+   * in parallel on the given {@code Executor} during each iteration. The executor may be
+   * shared by many concurrent k-means runs. The partial sums from each chunk are combined
+   * in a fixed order, so the results do not depend on the number of threads that are used,
+   * although they may differ in the last few bits from the serial computation.
+   * 
+   * @param numIterations The number of iterations to run
+   * @param executor The executor to run the chunks on, or null to run serially
+   */
+  public LloydsUpdateStrategy(int numIterations, Executor executor) {
+    this(numIterations, executor, Convergence.EXACT);
+  }
+  
+  /**
+   * Creates an instance that stops before running {@code numIterations} iterations once
+   * the given {@code Convergence} criteria are met. Whatever the criteria, the algorithm
+   * stops as soon as an iteration does not change the assignment of any point, since
+   * further iterations could not change the centers.
+   * 
+   * @param numIterations The maximum number of iterations to run
+   * @param executor The executor to run the chunks on, or null to run serially
+   * @param convergence The criteria for stopping early
+   */
+  public LloydsUpdateStrategy(int numIterations, Executor executor, Convergence convergence) {
     this.numIterations = numIterations;
+    this.executor = executor;
+    this.convergence = convergence;
+  }
+  
+  /**
+   * Returns the maximum number of iterations of Lloyd's algorithm this instance runs.
+   */
+  public int getNumIterations() {
+    return numIterations;
+  }
+  
+  public Convergence getConvergence() {
+    return convergence;
+  }
+  
+  Executor getExecutor() {
+    return executor;
   }
   
   @Override
   public <V extends Vector> Centers update(List<Weighted<V>> points, Centers centers) {
-    for (int iter = 0; iter < numIterations; iter++) {
-      Map<Integer, List<Weighted<V>>> assignments = Maps.newHashMap();
-      for (int i = 0; i < centers.size(); i++) {
-        assignments.put(i, Lists.<Weighted<V>>newArrayList());
+    return update(PackedPoints.of(points), centers);
+  }
+  
+  @Override
+  public Centers update(PackedPoints points, Centers centers) {
+    return update(points, centers, 0);
+  }
+  
+  /**
+   * Runs the iterations that remain after the first {@code iter} of them, starting
+   * from the given centers.
+   */
+  private Centers update(PackedPoints points, Centers centers, int iter) {
+    CenterMatrix current = new CenterMatrix(centers, points.dimension());
+    CenterMatrix next = new CenterMatrix(current.size(), points.dimension());
+    Iterations iterations = start(points, centers, current);
+    double cost = Double.POSITIVE_INFINITY;
+    while (iter < numIterations) {
+      iter++;
+      if (!iterations.next(current, next)) {
+        break;
       }
-      for (Weighted<V> weightedVec : points) {
-        assignments.get(centers.indexOfClosest(weightedVec.thing())).add(weightedVec);
+      double previousCost = cost;
+      cost = iterations.cost();
+      double shift = current.shift(next);
+      CenterMatrix tmp = current;
+      current = next;
+      next = tmp;
+      if (convergence.isConverged(previousCost, cost, shift)) {
+        break;
       }
-      List<Vector> centroids = Lists.newArrayList();
-      for (Map.Entry<Integer, List<Weighted<V>>> e : assignments.entrySet()) {
-        if (e.getValue().isEmpty()) {
-          centroids.add(centers.get(e.getKey())); // fix the no-op center
-        } else {
-          centroids.add(centroid(e.getValue()));
-        }
+      if (current.hasDuplicates()) {
+        // Carries on from a single copy of any centers that merged, just as if the centers
+        // had been deduplicated through a new Centers instance
+        return update(points, current.toCenters(), iter);
       }
-      centers = new Centers(centroids);
     }
-    return centers;
+    logIterations(iter);
+    return current.toCenters();
   }
+  
+  /**
+   * The state that a strategy keeps from one iteration to the next over a run that starts
+   * from a given set of centers. The run is started over with a new instance whenever two
+   * of the centers merge.
+   */
+  abstract static class Iterations {
+    /**
+     * Assigns the points to the current centers and writes the centroids of the points
+     * assigned to each one into {@code next}.
+     * 
+     * @return False if no point changed its assignment, in which case {@code next} is left
+     *     as it is and the iterations stop
+     */
+    abstract boolean next(CenterMatrix current, CenterMatrix next);
 
+    /**
+     * Returns the cost of the centers that the last call to {@link #next} assigned the
+     * points to, if the convergence criteria use it.
+     */
+    abstract double cost();
+  }
+  
+  /**
+   * Creates the state for a run of the iterations over the given points that starts from
+   * the given centers, which {@code current} is a copy of.
+   */
+  Iterations start(final PackedPoints points, Centers centers, CenterMatrix current) {
+    final CenterMatrix[] partials = newPartials(points, current);
+    final int[] assignments = new int[points.size()];
+    Arrays.fill(assignments, -1);
+    final double[] distances = new double[points.size()];
+    return new Iterations() {
+      private double cost;
+  
+      @Override
+      boolean next(CenterMatrix current, CenterMatrix next) {
+        if (assign(points, current, assignments, distances) == 0) {
+          return false;
+        }
+        cost = LloydsUpdateStrategy.cost(points, distances);
+        centroids(points, assignments, current, next, partials);
+        return true;
+      }
+  
+      @Override
+      double cost() {
+        return cost;
+      }
+    };
+  }
+  
+  /**
+   * Assigns each point to its closest center, recording the squared distance to it,
+   * and returns the number of points whose assignment changed.
+   */
+  private int assign(final PackedPoints points, final CenterMatrix centers,
+      final int[] assignments, final double[] distances) {
+    final int[] changes = new int[Chunks.count(assignments.length)];
+    Chunks.run(executor, assignments.length, new Chunks.Task() {
+      @Override
+      public void run(int chunk, int start, int end) {
+        for (int i = start; i < end; i++) {
+          int c = centers.closest(points, i, distances);
+          if (c != assignments[i]) {
+            assignments[i] = c;
+            changes[chunk]++;
+          }
+        }
+      }
+    });
+    return sum(changes);
+  }
+  
+  static int sum(int[] counts) {
+    int total = 0;
+    for (int count : counts) {
+      total += count;
+    }
+    return total;
+  }
+  
+  /**
+   * Returns the weighted sum of the given squared distances from each point to
+   * its assigned center.
+   */
+  static double cost(PackedPoints points, double[] distances) {
+    double cost = 0.0;
+    for (int i = 0; i < distances.length; i++) {
+      cost += points.weight(i) * distances[i];
+    }
+    return cost;
+  }
+  
+  void logIterations(int iterations) {
+    LOG.info(String.format("%s stopped after %d of %d iterations",
+        getClass().getSimpleName(), iterations, numIterations));
+  }
+  
+  /**
+   * Returns true if a point whose assigned center is at most {@code upper} away
+   * cannot be closer to (or tied with) a center that is at least {@code lower} away.
+   */
+  static boolean prunes(double upper, double lower) {
+    return upper * (1.0 + SLACK) < lower;
+  }
+  
+  /**
+   * Creates the buffers that each chunk of points accumulates its partial sums into when
+   * this instance runs in parallel, or returns null if it runs serially.
+   */
+  CenterMatrix[] newPartials(PackedPoints points, CenterMatrix centers) {
+    if (executor == null) {
+      return null;
+    }
+    CenterMatrix[] partials = new CenterMatrix[Chunks.count(points.size())];
+    for (int c = 0; c < partials.length; c++) {
+      partials[c] = new CenterMatrix(centers.size(), points.dimension());
+    }
+    return partials;
+  }
+  
+  /**
+   * Computes the next set of centers from the current assignment of each point to
+   * one of the current centers. Centers that have no points assigned to them are left
+   * where they are.
+   * 
+   * @param points The weighted points
+   * @param assignments The index of the center each point is assigned to
+   * @param current The current centers
+   * @param next The matrix to write the centroids of the assigned points into
+   * @param partials The per-chunk buffers from {@link #newPartials}
+   */
+  void centroids(final PackedPoints points, final int[] assignments, CenterMatrix current,
+      CenterMatrix next, final CenterMatrix[] partials) {
+    next.clear();
+    if (partials == null) {
+      for (int i = 0; i < assignments.length; i++) {
+        next.add(assignments[i], points, i);
+      }
+    } else {
+      Chunks.run(executor, assignments.length, new Chunks.Task() {
+        @Override
+        public void run(int chunk, int start, int end) {
+          CenterMatrix partial = partials[chunk];
+          partial.clear();
+          for (int i = start; i < end; i++) {
+            partial.add(assignments[i], points, i);
+          }
+        }
+      });
+      for (CenterMatrix partial : partials) {
+        next.addAll(partial);
+      }
+    }
+    next.finish(current);
+  }
+  
   /**
    * Compute the {@code Vector} that is the centroid of the given weighted points.
    * 
@@ -66,17 +300,24 @@ public class LloydsUpdateStrategy implements KMeansUpdateStrategy {
    * @return The centroid of the weighted points
    */
   public <V extends Vector> Vector centroid(Collection<Weighted<V>> points) {
-    Vector center = null;
+    Preconditions.checkArgument(!points.isEmpty(), "Cannot compute the centroid of no points");
+    double[] sum = null;
     double sz = 0.0;
     for (Weighted<V> v : points) {
-      Vector weighted = v.thing().times(v.weight());
-      if (center == null) {
-        center = weighted;
-      } else {
-        center = center.plus(weighted);
+      if (sum == null) {
+        sum = new double[v.thing().size()];
       }
-      sz += v.weight();
+      double w = v.weight();
+      Iterator<Vector.Element> iter = v.thing().iterateNonZero();
+      while (iter.hasNext()) {
+        Vector.Element e = iter.next();
+        sum[e.index()] += w * e.get();
+      }
+      sz += w;
+    }
+    for (int j = 0; j < sum.length; j++) {
+      sum[j] /= sz;
     }
-    return center.divide(sz);
+    return new DenseVector(sum, true);
   }  
 }
@@ -16,57 +16,136 @@ package com.cloudera.science.ml.kmeans.core;
 
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Executor;
 
 import org.apache.mahout.math.Vector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.cloudera.science.ml.core.vectors.Centers;
 import com.cloudera.science.ml.core.vectors.Weighted;
-import com.cloudera.science.ml.core.vectors.WeightedSampler;
-import com.google.common.collect.Lists;
 
 /**
- *
+ * The mini-batch k-means update rule from
+ * <a href="http://www.eecs.tufts.edu/~dsculley/papers/fastkmeans.pdf">Sculley (2010)</a>,
+ * which moves each center towards a random sample of the points on every iteration. The
+ * samples are drawn in proportion to the point weights from an alias table, and the centers
+ * are updated in place.
  */
 public class MiniBatchUpdateStrategy implements KMeansUpdateStrategy {
 
+  private static final Logger LOG = LoggerFactory.getLogger(MiniBatchUpdateStrategy.class);
+
+  // The weight given to the newest mini-batch in the running average of the cost
+  private static final double COST_DECAY = 0.1;
+
   private final int numIterations;
   private final int miniBatchSize;
   private final Random random;
+  private final Convergence convergence;
+  private final Executor executor;
   
   public MiniBatchUpdateStrategy(int numIterations, int miniBatchSize, Random random) {
+    this(numIterations, miniBatchSize, random, Convergence.NEVER);
+  }
+  
+  /**
+   * Creates an instance that stops before running {@code numIterations} iterations once
+   * the given {@code Convergence} criteria are met. The cost of each iteration is estimated
+   * from a running average of the cost of the points in each mini-batch, and the shift is
+   * the total squared distance the centers moved during the most recent mini-batch.
+   * 
+   * @param numIterations The maximum number of iterations to run
+   * @param miniBatchSize The number of points to sample in each iteration
+   * @param random The source of randomness for the samples
+   * @param convergence The criteria for stopping early
+   */
+  public MiniBatchUpdateStrategy(int numIterations, int miniBatchSize, Random random,
+      Convergence convergence) {
+    this(numIterations, miniBatchSize, random, convergence, null);
+  }
+  
+  /**
+   * Creates an instance that finds the closest centers for each chunk of a mini-batch in
+   * parallel on the given {@code Executor}. The samples are always drawn on the calling
+   * thread, so the results do not depend on the number of threads that are used.
+   * 
+   * @param numIterations The maximum number of iterations to run
+   * @param miniBatchSize The number of points to sample in each iteration
+   * @param random The source of randomness for the samples
+   * @param convergence The criteria for stopping early
+   * @param executor The executor to run the chunks on, or null to run serially
+   */
+  public MiniBatchUpdateStrategy(int numIterations, int miniBatchSize, Random random,
+      Convergence convergence, Executor executor) {
     this.numIterations = numIterations;
     this.miniBatchSize = miniBatchSize;
     this.random = (random == null) ? new Random() : random;
+    this.convergence = convergence;
+    this.executor = executor;
   }
   
   @Override
   public <V extends Vector> Centers update(List<Weighted<V>> points, Centers centers) {
-    int[] perCenterStepCounts = new int[centers.size()];
-    WeightedSampler<V> sampler = new WeightedSampler<V>(points, random);
-    for (int iter = 0; iter < numIterations; iter++) {
-      // Compute closest cent for each mini-batch
-      List<List<V>> centerAssignments = Lists.newArrayList();
-      for (int i = 0; i < centers.size(); i++) {
-        centerAssignments.add(Lists.<V>newArrayList());
+    return update(PackedPoints.of(points), centers);
+  }
+  
+  @Override
+  public Centers update(final PackedPoints points, Centers centers) {
+    final CenterMatrix current = new CenterMatrix(centers, points.dimension());
+    double[] cv = current.values();
+    double[] px = points.values();
+    int dim = points.dimension();
+    int[] perCenterStepCounts = new int[current.size()];
+    AliasSampler sampler = new AliasSampler(points.weights());
+    CenterMatrix previous = new CenterMatrix(current.size(), dim);
+    final double[] distances = new double[points.size()];
+    final int[] samples = new int[miniBatchSize];
+    final int[] assignments = new int[miniBatchSize];
+    double cost = Double.POSITIVE_INFINITY;
+    int iter = 0;
+    while (iter < numIterations) {
+      iter++;
+      System.arraycopy(cv, 0, previous.values(), 0, cv.length);
+      // Draw the mini-batch and find the closest center for each sample
+      for (int i = 0; i < miniBatchSize; i++) {
+        samples[i] = sampler.sample(random);
       }
+      Chunks.run(executor, miniBatchSize, new Chunks.Task() {
+        @Override
+        public void run(int chunk, int start, int end) {
+          for (int i = start; i < end; i++) {
+            assignments[i] = current.closest(points, samples[i], distances);
+          }
+        }
+      });
+      double batchCost = 0.0;
       for (int i = 0; i < miniBatchSize; i++) {
-        V sample = sampler.sample();
-        int closestId = centers.indexOfClosest(sample);
-        centerAssignments.get(closestId).add(sample);
+        batchCost += distances[samples[i]];
       }
-      // Apply the mini-batch
-      List<Vector> nextCenters = Lists.newArrayList();
-      for (int i = 0; i < centerAssignments.size(); i++) {
-        Vector currentCenter = centers.get(i);
-        for (int j = 0; j < centerAssignments.get(i).size(); j++) {
-          double eta = 1.0 / (++perCenterStepCounts[i] + 1.0);
-          currentCenter = currentCenter.times(1.0 - eta);
-          currentCenter = currentCenter.plus(centerAssignments.get(i).get(j).times(eta));
+      batchCost /= miniBatchSize;
+      double previousCost = cost;
+      cost = Double.isInfinite(previousCost) ? batchCost :
+          (1.0 - COST_DECAY) * previousCost + COST_DECAY * batchCost;
+      // Apply the mini-batch; the updates to each center happen in sample order
+      for (int i = 0; i < miniBatchSize; i++) {
+        int c = assignments[i];
+        double eta = 1.0 / (++perCenterStepCounts[c] + 1.0);
+        int offset = c * dim;
+        int sampleOffset = samples[i] * dim;
+        for (int j = 0; j < dim; j++) {
+          cv[offset + j] = (1.0 - eta) * cv[offset + j] + eta * px[sampleOffset + j];
         }
-        nextCenters.add(currentCenter);
       }
-      centers = new Centers(nextCenters);
+      for (int c = 0; c < current.size(); c++) {
+        current.updateLength(c);
+      }
+      if (convergence.isConverged(previousCost, cost, current.shift(previous))) {
+        break;
+      }
     }
-    return centers;
+    LOG.info(String.format("Mini-batch k-means stopped after %d of %d iterations",
+        iter, numIterations));
+    return current.toCenters();
   }
 }
@@ -0,0 +1,250 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.kmeans.core;
+
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.Vector;
+
+import com.cloudera.science.ml.avro.MLVector;
+import com.cloudera.science.ml.avro.MLWeightedCenters;
+import com.cloudera.science.ml.avro.MLWeightedVector;
+import com.cloudera.science.ml.core.vectors.Weighted;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+/**
+ * An immutable set of weighted points packed into a single row-major {@code double[]},
+ * along with a parallel array of weights and the cached squared length of each point.
+ * The in-memory k-means algorithms run their distance calculations directly against
+ * this layout instead of going through the Mahout {@code Vector} interface.
+ */
+public final class PackedPoints {
+
+  // Points where no more than one in this many values is non-zero are also indexed sparsely
+  private static final int SPARSE_DENSITY = 4;
+
+  private final int size;
+  private final int dimension;
+  private final double[] values;
+  private final double[] weights;
+  private final double[] lengthSquared;
+  // The column indices of the non-zero values in each row, in the usual compressed sparse
+  // row layout, or null if the points are dense enough that it is not worth keeping them
+  private int[] rowStarts;
+  private int[] columns;
+
+  /**
+   * Packs the given weighted vectors, which must all have the same cardinality.
+   *
+   * @param points The points to pack
+   * @return A new {@code PackedPoints} instance
+   */
+  public static <V extends Vector> PackedPoints of(List<Weighted<V>> points) {
+    int dimension = points.isEmpty() ? 0 : points.get(0).thing().size();
+    PackedPoints packed = new PackedPoints(points.size(), dimension);
+    for (int i = 0; i < points.size(); i++) {
+      Weighted<V> wv = points.get(i);
+      Vector v = wv.thing();
+      Preconditions.checkArgument(v.size() == dimension,
+          String.format("Expected a vector of size %d but found %d", dimension, v.size()));
+      int offset = i * dimension;
+      Iterator<Vector.Element> iter = v.iterateNonZero();
+      while (iter.hasNext()) {
+        Vector.Element e = iter.next();
+        packed.values[offset + e.index()] = e.get();
+      }
+      packed.weights[i] = wv.weight();
+    }
+    packed.computeLengths();
+    return packed;
+  }
+
+  /**
+   * Packs the weighted vectors of a sketch that was created by the k-means|| algorithm.
+   *
+   * @param sketch The sketch
+   * @return A new {@code PackedPoints} instance
+   */
+  public static PackedPoints fromSketch(MLWeightedCenters sketch) {
+    return fromSketches(ImmutableList.of(sketch));
+  }
+
+  /**
+   * Packs the weighted vectors from all of the given sketches into a single
+   * {@code PackedPoints} instance, in order.
+   *
+   * @param sketches The sketches
+   * @return A new {@code PackedPoints} instance
+   */
+  public static PackedPoints fromSketches(List<MLWeightedCenters> sketches) {
+    int size = 0;
+    int dimension = -1;
+    for (MLWeightedCenters sketch : sketches) {
+      for (MLWeightedVector wv : sketch.getCenters()) {
+        if (dimension < 0) {
+          dimension = wv.getVec().getSize();
+        }
+        size++;
+      }
+    }
+    PackedPoints packed = new PackedPoints(size, Math.max(dimension, 0));
+    int row = 0;
+    for (MLWeightedCenters sketch : sketches) {
+      for (MLWeightedVector wv : sketch.getCenters()) {
+        packed.set(row++, wv.getVec(), wv.getWeight());
+      }
+    }
+    packed.computeLengths();
+    return packed;
+  }
+
+  private PackedPoints(int size, int dimension) {
+    this.size = size;
+    this.dimension = dimension;
+    this.values = new double[size * dimension];
+    this.weights = new double[size];
+    this.lengthSquared = new double[size];
+  }
+
+  private void set(int row, MLVector vec, double weight) {
+    Preconditions.checkArgument(vec.getSize() == dimension,
+        String.format("Expected a vector of size %d but found %d", dimension, vec.getSize()));
+    int offset = row * dimension;
+    List<Double> vals = vec.getValues();
+    List<Integer> indices = vec.getIndices();
+    if (indices.isEmpty()) {
+      for (int j = 0; j < dimension; j++) {
+        values[offset + j] = vals.get(j);
+      }
+    } else {
+      for (int j = 0; j < vals.size(); j++) {
+        values[offset + indices.get(j)] = vals.get(j);
+      }
+    }
+    weights[row] = weight;
+  }
+
+  private void computeLengths() {
+    int nonZeros = 0;
+    for (int i = 0; i < size; i++) {
+      double len = 0.0;
+      for (int j = i * dimension; j < (i + 1) * dimension; j++) {
+        if (values[j] != 0.0) {
+          len += values[j] * values[j];
+          nonZeros++;
+        }
+      }
+      lengthSquared[i] = len;
+    }
+    if (nonZeros <= values.length / SPARSE_DENSITY) {
+      rowStarts = new int[size + 1];
+      columns = new int[nonZeros];
+      int next = 0;
+      for (int i = 0; i < size; i++) {
+        rowStarts[i] = next;
+        for (int j = 0; j < dimension; j++) {
+          if (values[i * dimension + j] != 0.0) {
+            columns[next++] = j;
+          }
+        }
+      }
+      rowStarts[size] = next;
+    }
+  }
+
+  /**
+   * Returns the number of points in this instance.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the cardinality of each of the points in this instance.
+   */
+  public int dimension() {
+    return dimension;
+  }
+
+  /**
+   * Returns the weight of the point at the given index.
+   */
+  public double weight(int index) {
+    return weights[index];
+  }
+
+  /**
+   * Returns the squared length of the point at the given index.
+   */
+  public double lengthSquared(int index) {
+    return lengthSquared[index];
+  }
+
+  /**
+   * Returns a new dense {@code Vector} that contains a copy of the point at the given index.
+   */
+  public Vector get(int index) {
+    double[] v = new double[dimension];
+    System.arraycopy(values, index * dimension, v, 0, dimension);
+    return new DenseVector(v, true);
+  }
+
+  /**
+   * Returns the squared Euclidean distance between the points at the two given indices.
+   */
+  public double distanceSquared(int index, int other) {
+    double d = 0.0;
+    int a = index * dimension;
+    int b = other * dimension;
+    for (int j = 0; j < dimension; j++) {
+      double diff = values[a + j] - values[b + j];
+      d += diff * diff;
+    }
+    return d;
+  }
+
+  /**
+   * Converts the points back into a list of {@code Weighted<Vector>} instances.
+   */
+  public List<Weighted<Vector>> toWeightedVectors() {
+    List<Weighted<Vector>> ret = Lists.newArrayListWithCapacity(size);
+    for (int i = 0; i < size; i++) {
+      ret.add(new Weighted<Vector>(get(i), weights[i]));
+    }
+    return ret;
+  }
+
+  // The backing row-major array, shared with the k-means implementations
+  double[] values() {
+    return values;
+  }
+
+  double[] weights() {
+    return weights;
+  }
+
+  // The sparse row index, or null if the points are only stored densely
+  int[] rowStarts() {
+    return rowStarts;
+  }
+
+  int[] columns() {
+    return columns;
+  }
+}
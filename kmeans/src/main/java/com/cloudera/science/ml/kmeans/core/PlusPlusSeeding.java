@@ -0,0 +1,185 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.kmeans.core;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+import com.google.common.collect.Lists;
+
+/**
+ * The state of a single run of k-means++ seeding. Each point keeps the squared distance
+ * to its closest chosen center, which only needs to be compared against the newest center
+ * when one is added, so choosing k centers takes O(n * k) distance calculations. The
+ * weighted scores are summed per chunk of points, so a sample only needs to scan the
+ * chunk that it falls into.
+ *
+ * <p>If more than one local trial is requested, each step samples that many candidates
+ * and keeps the one that reduces the total cost the most, as in the "greedy k-means++"
+ * variant from Arthur and Vassilvitskii (2007).
+ */
+final class PlusPlusSeeding {
+
+  private final PackedPoints points;
+  private final Random random;
+  private final Executor executor;
+  private final double[] minDistances;
+  private final double[] chunkScores;
+  private final List<Integer> chosen = Lists.newArrayList();
+
+  /**
+   * Chooses the indices of up to {@code numClusters} points to use as the initial centers,
+   * starting from the given point. Fewer indices are returned if every point coincides
+   * with one of the chosen centers.
+   *
+   * @param points The candidate points
+   * @param first The index of the first center
+   * @param numClusters The number of centers to choose
+   * @param numTrials The number of candidates to sample at each step
+   * @param random The source of randomness
+   * @param executor The executor to run the chunks of points on, or null to run serially
+   * @return The indices of the chosen points, in the order they were chosen
+   */
+  static List<Integer> choose(PackedPoints points, int first, int numClusters, int numTrials,
+      Random random, Executor executor) {
+    PlusPlusSeeding seeding = new PlusPlusSeeding(points, random, executor);
+    seeding.add(first);
+    while (seeding.chosen.size() < numClusters) {
+      double total = seeding.totalScore();
+      if (total <= 0.0) {
+        break;
+      }
+      int next;
+      if (numTrials <= 1) {
+        next = seeding.sample(total);
+      } else {
+        int[] candidates = new int[numTrials];
+        for (int t = 0; t < numTrials; t++) {
+          candidates[t] = seeding.sample(total);
+        }
+        next = seeding.best(candidates);
+      }
+      seeding.add(next);
+    }
+    return seeding.chosen;
+  }
+
+  /**
+   * Returns the number of local trials that the greedy variant uses for the
+   * given number of clusters.
+   */
+  static int defaultNumTrials(int numClusters) {
+    return 2 + (int) Math.log(numClusters);
+  }
+
+  private PlusPlusSeeding(PackedPoints points, Random random, Executor executor) {
+    this.points = points;
+    this.random = random;
+    this.executor = executor;
+    this.minDistances = new double[points.size()];
+    this.chunkScores = new double[Chunks.count(points.size())];
+    Arrays.fill(minDistances, Double.POSITIVE_INFINITY);
+  }
+
+  private void add(final int center) {
+    chosen.add(center);
+    Chunks.run(executor, points.size(), new Chunks.Task() {
+      @Override
+      public void run(int chunk, int start, int end) {
+        double score = 0.0;
+        for (int i = start; i < end; i++) {
+          double d = points.distanceSquared(i, center);
+          if (d < minDistances[i]) {
+            minDistances[i] = d;
+          }
+          score += points.weight(i) * minDistances[i];
+        }
+        chunkScores[chunk] = score;
+      }
+    });
+  }
+
+  private double totalScore() {
+    double total = 0.0;
+    for (double score : chunkScores) {
+      total += score;
+    }
+    return total;
+  }
+
+  /**
+   * Samples the index of a point with probability proportional to its weighted
+   * squared distance from the closest chosen center.
+   */
+  private int sample(double total) {
+    double r = random.nextDouble() * total;
+    int chunk = 0;
+    while (chunk < chunkScores.length - 1 && r >= chunkScores[chunk]) {
+      r -= chunkScores[chunk++];
+    }
+    int n = points.size();
+    for (int i = Chunks.start(chunk, chunkScores.length, n); i < n; i++) {
+      double score = points.weight(i) * minDistances[i];
+      if (r < score) {
+        return i;
+      }
+      r -= score;
+    }
+    // Rounding error took us past the end, so use the last point that could be chosen
+    for (int i = n - 1; i > 0; i--) {
+      if (points.weight(i) * minDistances[i] > 0.0) {
+        return i;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Returns the candidate that would leave the lowest total score if it were added,
+   * with ties going to the earliest candidate.
+   */
+  private int best(final int[] candidates) {
+    final int numChunks = chunkScores.length;
+    final double[][] costs = new double[candidates.length][numChunks];
+    Chunks.run(executor, points.size(), new Chunks.Task() {
+      @Override
+      public void run(int chunk, int start, int end) {
+        for (int t = 0; t < candidates.length; t++) {
+          double cost = 0.0;
+          for (int i = start; i < end; i++) {
+            double d = points.distanceSquared(i, candidates[t]);
+            cost += points.weight(i) * Math.min(d, minDistances[i]);
+          }
+          costs[t][chunk] = cost;
+        }
+      }
+    });
+    int best = -1;
+    double min = Double.POSITIVE_INFINITY;
+    for (int t = 0; t < candidates.length; t++) {
+      double cost = 0.0;
+      for (int c = 0; c < numChunks; c++) {
+        cost += costs[t][c];
+      }
+      if (cost < min) {
+        min = cost;
+        best = candidates[t];
+      }
+    }
+    return best;
+  }
+}
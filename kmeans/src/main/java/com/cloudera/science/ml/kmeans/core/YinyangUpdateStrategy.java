@@ -0,0 +1,330 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.kmeans.core;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.mahout.math.Vector;
+
+import com.cloudera.science.ml.core.vectors.Centers;
+import com.cloudera.science.ml.core.vectors.Weighted;
+import com.google.common.collect.Lists;
+
+/**
+ * An accelerated version of Lloyd's algorithm that groups the centers and keeps one lower
+ * bound per group for each point, as described in
+ * <a href="http://proceedings.mlr.press/v37/ding15.pdf">Ding et al. (2015)</a>.
+ *
+ * <p>The centers are split into about {@code k / 10} groups by clustering the initial
+ * centers, so the bounds take O(n * k / 10) memory instead of the O(n * k) that
+ * {@link ElkanUpdateStrategy} needs, which makes it the better choice for large values of K.
+ * A point only has to be compared against the centers in the groups whose lower bound is
+ * smaller than the upper bound on the distance to its assigned center. The centers that
+ * are returned are identical to the ones computed by {@link LloydsUpdateStrategy} for the
+ * same inputs.
+ */
+public class YinyangUpdateStrategy extends LloydsUpdateStrategy {
+
+  static final int CENTERS_PER_GROUP = 10;
+  private static final int GROUPING_ITERATIONS = 5;
+
+  private final AtomicLong distanceCalculations = new AtomicLong();
+
+  public YinyangUpdateStrategy(int numIterations) {
+    this(numIterations, null);
+  }
+
+  /**
+   * Creates an instance that updates the bounds of each chunk of points in parallel on
+   * the given {@code Executor}; see {@link LloydsUpdateStrategy#LloydsUpdateStrategy(int, Executor)}.
+   *
+   * @param numIterations The number of iterations to run
+   * @param executor The executor to run the chunks on, or null to run serially
+   */
+  public YinyangUpdateStrategy(int numIterations, Executor executor) {
+    super(numIterations, executor);
+  }
+
+  /**
+   * Creates an instance that stops early once the given {@code Convergence} criteria are
+   * met; see {@link LloydsUpdateStrategy#LloydsUpdateStrategy(int, Executor, Convergence)}.
+   *
+   * @param numIterations The maximum number of iterations to run
+   * @param executor The executor to run the chunks on, or null to run serially
+   * @param convergence The criteria for stopping early
+   */
+  public YinyangUpdateStrategy(int numIterations, Executor executor, Convergence convergence) {
+    super(numIterations, executor, convergence);
+  }
+
+  /**
+   * Returns the total number of point-to-center distances that this instance has computed
+   * after the first iteration of each of its runs, which is the work that the bounds save.
+   */
+  long getDistanceCalculations() {
+    return distanceCalculations.get();
+  }
+
+  /**
+   * Starts a run of the iterations with a fresh grouping of the centers and a fresh set of
+   * bounds.
+   */
+  @Override
+  Iterations start(final PackedPoints points, Centers centers, CenterMatrix current) {
+    final int n = points.size();
+    final CenterMatrix[] partials = newPartials(points, current);
+    final int k = current.size();
+    final int[][] groups = group(points.dimension(), centers);
+    final int[] groupOf = new int[k];
+    for (int g = 0; g < groups.length; g++) {
+      for (int c : groups[g]) {
+        groupOf[c] = g;
+      }
+    }
+    final int t = groups.length;
+    final int[] assignments = new int[n];
+    final double[] upper = new double[n];
+    final double[][] lower = new double[n][t];
+    final double[] shifts = new double[k];
+    final double[] groupShifts = new double[t];
+    final double[] distances = getConvergence().usesCost() ? new double[n] : null;
+    final int[] changes = new int[Chunks.count(n)];
+    final long[] calculations = new long[changes.length];
+    return new Iterations() {
+      private double cost = Double.POSITIVE_INFINITY;
+      private boolean first = true;
+
+      @Override
+      boolean next(final CenterMatrix current, CenterMatrix next) {
+        if (first) {
+          first = false;
+          Chunks.run(getExecutor(), n, new Chunks.Task() {
+            @Override
+            public void run(int chunk, int start, int end) {
+              for (int i = start; i < end; i++) {
+                initBounds(points, i, current, groups, assignments, upper, lower[i]);
+              }
+            }
+          });
+        } else {
+          Arrays.fill(changes, 0);
+          Arrays.fill(calculations, 0L);
+          Chunks.run(getExecutor(), n, new Chunks.Task() {
+            @Override
+            public void run(int chunk, int start, int end) {
+              for (int i = start; i < end; i++) {
+                int a = assignments[i];
+                calculations[chunk] += assign(points, i, current, groups, groupOf, assignments,
+                    upper, lower[i]);
+                if (assignments[i] != a) {
+                  changes[chunk]++;
+                }
+              }
+            }
+          });
+          for (long c : calculations) {
+            distanceCalculations.addAndGet(c);
+          }
+          if (sum(changes) == 0) {
+            return false;
+          }
+        }
+
+        if (distances != null) {
+          Chunks.run(getExecutor(), n, new Chunks.Task() {
+            @Override
+            public void run(int chunk, int start, int end) {
+              for (int i = start; i < end; i++) {
+                distances[i] = current.distanceSquared(points, i, assignments[i]);
+              }
+            }
+          });
+          cost = LloydsUpdateStrategy.cost(points, distances);
+        }
+        centroids(points, assignments, current, next, partials);
+        Arrays.fill(groupShifts, 0.0);
+        for (int c = 0; c < k; c++) {
+          shifts[c] = Math.sqrt(current.distanceSquared(c, next, c));
+          groupShifts[groupOf[c]] = Math.max(groupShifts[groupOf[c]], shifts[c]);
+        }
+        Chunks.run(getExecutor(), n, new Chunks.Task() {
+          @Override
+          public void run(int chunk, int start, int end) {
+            for (int i = start; i < end; i++) {
+              upper[i] += shifts[assignments[i]];
+              double[] lb = lower[i];
+              for (int g = 0; g < t; g++) {
+                // An infinite bound (a group with no centers besides the assigned one) stays
+                // infinite, rather than turning into inf - inf = NaN, which never prunes
+                if (!Double.isInfinite(lb[g])) {
+                  lb[g] = Math.max(0.0, lb[g] - groupShifts[g] - SLACK * lb[g]);
+                }
+              }
+            }
+          }
+        });
+        return true;
+      }
+
+      @Override
+      double cost() {
+        return cost;
+      }
+    };
+  }
+
+  /**
+   * Splits the centers into groups by running a few iterations of Lloyd's algorithm
+   * over the centers themselves, returning the indices of the centers in each
+   * (non-empty) group in ascending order.
+   */
+  private static int[][] group(int dimension, Centers centers) {
+    int k = centers.size();
+    int t = Math.max(1, k / CENTERS_PER_GROUP);
+    List<Weighted<Vector>> wc = Lists.newArrayListWithCapacity(k);
+    List<Vector> seeds = Lists.newArrayListWithCapacity(t);
+    for (int c = 0; c < k; c++) {
+      wc.add(new Weighted<Vector>(centers.get(c)));
+    }
+    for (int g = 0; g < t; g++) {
+      seeds.add(centers.get((int) ((long) g * k / t)));
+    }
+    PackedPoints packed = PackedPoints.of(wc);
+    CenterMatrix groupCenters = new CenterMatrix(new Centers(seeds), dimension);
+    CenterMatrix sums = new CenterMatrix(groupCenters.size(), dimension);
+    int[] groupOf = new int[k];
+    for (int iter = 0; iter <= GROUPING_ITERATIONS; iter++) {
+      sums.clear();
+      for (int c = 0; c < k; c++) {
+        groupOf[c] = groupCenters.closest(packed, c);
+        sums.add(groupOf[c], packed, c);
+      }
+      if (iter < GROUPING_ITERATIONS) {
+        sums.finish(groupCenters);
+        CenterMatrix tmp = groupCenters;
+        groupCenters = sums;
+        sums = tmp;
+      }
+    }
+    int[] sizes = new int[groupCenters.size()];
+    for (int c = 0; c < k; c++) {
+      sizes[groupOf[c]]++;
+    }
+    List<int[]> groups = Lists.newArrayList();
+    int[] index = new int[sizes.length];
+    for (int g = 0; g < sizes.length; g++) {
+      if (sizes[g] > 0) {
+        index[g] = groups.size();
+        groups.add(new int[sizes[g]]);
+      }
+    }
+    int[] filled = new int[groups.size()];
+    for (int c = 0; c < k; c++) {
+      int g = index[groupOf[c]];
+      groups.get(g)[filled[g]++] = c;
+    }
+    return groups.toArray(new int[groups.size()][]);
+  }
+
+  private static void initBounds(PackedPoints points, int i, CenterMatrix centers,
+      int[][] groups, int[] assignments, double[] upper, double[] lower) {
+    int best = -1;
+    double min = Double.POSITIVE_INFINITY;
+    for (int[] group : groups) {
+      for (int c : group) {
+        double d = centers.distanceSquared(points, i, c);
+        if (d < min || (d == min && c < best)) {
+          min = d;
+          best = c;
+        }
+      }
+    }
+    for (int g = 0; g < groups.length; g++) {
+      double lb = Double.POSITIVE_INFINITY;
+      for (int c : groups[g]) {
+        if (c != best) {
+          lb = Math.min(lb, centers.distanceSquared(points, i, c));
+        }
+      }
+      lower[g] = Math.sqrt(lb);
+    }
+    assignments[i] = best;
+    upper[i] = Math.sqrt(min);
+  }
+
+  /**
+   * Updates the assignment and bounds of the given point, returning the number of
+   * distances to centers that were computed.
+   */
+  private static int assign(PackedPoints points, int i, CenterMatrix centers, int[][] groups,
+      int[] groupOf, int[] assignments, double[] upper, double[] lower) {
+    double u = upper[i];
+    double globalLower = Double.POSITIVE_INFINITY;
+    for (double lb : lower) {
+      globalLower = Math.min(globalLower, lb);
+    }
+    if (prunes(u, globalLower)) {
+      return 0;
+    }
+    int a = assignments[i];
+    double min = centers.distanceSquared(points, i, a);
+    int calculations = 1;
+    u = Math.sqrt(min);
+    upper[i] = u;
+    if (prunes(u, globalLower)) {
+      return calculations;
+    }
+    for (int g = 0; g < groups.length; g++) {
+      if (prunes(u, lower[g])) {
+        continue;
+      }
+      // Find the two closest centers in the group, other than the assigned one
+      int first = -1;
+      double firstDistance = Double.POSITIVE_INFINITY;
+      double secondDistance = Double.POSITIVE_INFINITY;
+      for (int c : groups[g]) {
+        if (c == a) {
+          continue;
+        }
+        double d = centers.distanceSquared(points, i, c);
+        calculations++;
+        if (d < firstDistance) {
+          secondDistance = firstDistance;
+          firstDistance = d;
+          first = c;
+        } else if (d < secondDistance) {
+          secondDistance = d;
+        }
+      }
+      // Ties go to the lowest index, just like CenterMatrix.closest
+      if (firstDistance < min || (firstDistance == min && first < a)) {
+        lower[g] = Math.sqrt(secondDistance);
+        int previous = groupOf[a];
+        lower[previous] = Math.min(lower[previous], u);
+        a = first;
+        min = firstDistance;
+        u = Math.sqrt(min);
+      } else {
+        lower[g] = Math.sqrt(firstDistance);
+      }
+    }
+    assignments[i] = a;
+    upper[i] = u;
+    return calculations;
+  }
+}
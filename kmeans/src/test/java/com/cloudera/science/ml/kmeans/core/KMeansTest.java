@@ -15,10 +15,14 @@
 package com.cloudera.science.ml.kmeans.core;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import org.apache.mahout.math.RandomAccessSparseVector;
 import org.apache.mahout.math.Vector;
 import org.junit.Before;
 import org.junit.Test;
@@ -27,6 +31,7 @@ import com.cloudera.science.ml.core.vectors.Centers;
 import com.cloudera.science.ml.core.vectors.Vectors;
 import com.cloudera.science.ml.core.vectors.Weighted;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 
 public class KMeansTest {
 
@@ -91,6 +96,29 @@ public class KMeansTest {
     assertEquals(new Centers(vec(1.5, 1.0), vec(4.5, 3.5)), done);
   }
   
+  @Test
+  public void testParallelPlusPlusInit() throws Exception {
+    List<Weighted<Vector>> blobs = blobs(3000, 5, 8);
+    PackedPoints packed = PackedPoints.of(blobs);
+    ExecutorService four = Executors.newFixedThreadPool(4);
+    try {
+      for (KMeansInitStrategy init : ImmutableList.of(KMeansInitStrategy.PLUS_PLUS,
+          KMeansInitStrategy.GREEDY_PLUS_PLUS)) {
+        Centers serial = init.apply(packed, 20, new Random(1729L));
+        assertEquals(20, serial.size());
+        assertEquals(serial, init.apply(packed, 20, new Random(1729L), four));
+      }
+    } finally {
+      four.shutdown();
+    }
+  }
+  
+  @Test
+  public void testPlusPlusInitWithFewerPoints() throws Exception {
+    assertEquals(new Centers(a.thing(), b.thing(), c.thing(), d.thing()),
+        KMeansInitStrategy.PLUS_PLUS.apply(points, 10, rand));
+  }
+  
   @Test
   public void testMiniBatch() throws Exception {
     Centers centers = new Centers(vec(2.0, 1.0), vec(5.0, 4.0));
@@ -98,4 +126,224 @@ public class KMeansTest {
     Centers done = miniBatch.update(points, centers);
     System.out.println(done);
   }
+  
+  @Test
+  public void testAliasSampler() throws Exception {
+    double[] weights = { 1.0, 0.0, 3.0, 6.0 };
+    AliasSampler sampler = new AliasSampler(weights);
+    int[] counts = new int[weights.length];
+    for (int i = 0; i < 100000; i++) {
+      counts[sampler.sample(rand)]++;
+    }
+    assertEquals(0, counts[1]);
+    assertEquals(0.1, counts[0] / 100000.0, 0.01);
+    assertEquals(0.3, counts[2] / 100000.0, 0.01);
+    assertEquals(0.6, counts[3] / 100000.0, 0.01);
+  }
+  
+  @Test
+  public void testParallelMiniBatch() throws Exception {
+    List<Weighted<Vector>> blobs = blobs(3000, 5, 8);
+    Centers init = KMeansInitStrategy.PLUS_PLUS.apply(blobs, 8, rand);
+    ExecutorService four = Executors.newFixedThreadPool(4);
+    try {
+      Centers serial = new MiniBatchUpdateStrategy(50, 1000, new Random(17L))
+          .update(blobs, init);
+      Centers parallel = new MiniBatchUpdateStrategy(50, 1000, new Random(17L),
+          Convergence.NEVER, four).update(blobs, init);
+      assertEquals(serial, parallel);
+    } finally {
+      four.shutdown();
+    }
+  }
+  
+  @Test
+  public void testPackedPoints() throws Exception {
+    Vector sparse = Vectors.sparse(2);
+    sparse.set(1, 3.0);
+    PackedPoints packed = PackedPoints.of(ImmutableList.of(a, new Weighted<Vector>(sparse, 2.0)));
+    assertEquals(2, packed.size());
+    assertEquals(2, packed.dimension());
+    assertEquals(vec(0.0, 3.0), packed.get(1));
+    assertEquals(2.0, packed.weight(1), 0.0);
+    assertEquals(9.0, packed.lengthSquared(1), 0.0);
+    assertEquals(5.0, packed.distanceSquared(0, 1), 0.0);
+  }
+  
+  @Test
+  public void testElkanMatchesLloyds() throws Exception {
+    List<Weighted<Vector>> blobs = blobs(500, 5, 8);
+    for (int k : new int[] { 1, 4, 8, 15 }) {
+      Centers init = KMeansInitStrategy.PLUS_PLUS.apply(blobs, k, rand);
+      assertEquals(new LloydsUpdateStrategy(20).update(blobs, init),
+          new ElkanUpdateStrategy(20).update(blobs, init));
+    }
+  }
+  
+  @Test
+  public void testYinyangMatchesLloyds() throws Exception {
+    List<Weighted<Vector>> blobs = blobs(1000, 5, 8);
+    for (int k : new int[] { 1, 8, 25, 60 }) {
+      Centers init = KMeansInitStrategy.PLUS_PLUS.apply(blobs, k, rand);
+      assertEquals(new LloydsUpdateStrategy(20).update(blobs, init),
+          new YinyangUpdateStrategy(20).update(blobs, init));
+    }
+  }
+  
+  @Test
+  public void testYinyangSingletonGroups() throws Exception {
+    // The first center is far away from the others, so it ends up in a group of its own
+    // and the points assigned to it have an infinite lower bound for that group
+    List<Weighted<Vector>> near = blobs(1000, 2, 4);
+    List<Weighted<Vector>> all = Lists.newArrayList(near);
+    for (int i = 0; i < 1000; i++) {
+      all.add(wpoint(1000.0 + rand.nextGaussian(), 1000.0 + rand.nextGaussian()));
+    }
+    List<Vector> init = Lists.<Vector>newArrayList(vec(1000.0, 1000.0));
+    for (int i = 0; i < 19; i++) {
+      init.add(near.get(i).thing());
+    }
+    Centers centers = new Centers(init);
+    YinyangUpdateStrategy withFar = new YinyangUpdateStrategy(20);
+    assertEquals(new LloydsUpdateStrategy(20).update(all, centers), withFar.update(all, centers));
+    // After the first iteration, the far points should all be pruned by their global lower
+    // bound, so they should not add any distance calculations to the ones for the near points
+    YinyangUpdateStrategy nearOnly = new YinyangUpdateStrategy(20);
+    nearOnly.update(near, centers);
+    assertTrue(nearOnly.getDistanceCalculations() > 0);
+    assertEquals(nearOnly.getDistanceCalculations(), withFar.getDistanceCalculations());
+  }
+  
+  @Test
+  public void testParallelUpdates() throws Exception {
+    List<Weighted<Vector>> blobs = blobs(3000, 5, 8);
+    Centers init = KMeansInitStrategy.PLUS_PLUS.apply(blobs, 12, rand);
+    ExecutorService one = Executors.newSingleThreadExecutor();
+    ExecutorService four = Executors.newFixedThreadPool(4);
+    try {
+      Centers serial = new LloydsUpdateStrategy(20).update(blobs, init);
+      Centers parallel = new LloydsUpdateStrategy(20, four).update(blobs, init);
+      assertEquals(parallel, new LloydsUpdateStrategy(20, one).update(blobs, init));
+      assertEquals(parallel, new ElkanUpdateStrategy(20, four).update(blobs, init));
+      assertEquals(parallel, new YinyangUpdateStrategy(20, four).update(blobs, init));
+      assertEquals(serial.size(), parallel.size());
+      for (Vector c : serial) {
+        assertEquals(0.0, parallel.getDistanceSquared(c), 1.0e-12);
+      }
+    } finally {
+      one.shutdown();
+      four.shutdown();
+    }
+  }
+  
+  @Test
+  public void testEarlyStopping() throws Exception {
+    List<Weighted<Vector>> blobs = blobs(2000, 4, 6);
+    Centers init = KMeansInitStrategy.PLUS_PLUS.apply(blobs, 10, rand);
+    Centers full = new LloydsUpdateStrategy(200, null, Convergence.NEVER).update(blobs, init);
+    assertEquals(full, new LloydsUpdateStrategy(200).update(blobs, init));
+    assertEquals(full, new ElkanUpdateStrategy(200).update(blobs, init));
+
+    Convergence loose = Convergence.of(0.01, 0.0);
+    Centers approx = new LloydsUpdateStrategy(200, null, loose).update(blobs, init);
+    assertEquals(approx, new ElkanUpdateStrategy(200, null, loose).update(blobs, init));
+  }
+
+  @Test
+  public void testSparseUpdate() throws Exception {
+    List<Weighted<Vector>> sparse = Lists.newArrayList();
+    for (int i = 0; i < 500; i++) {
+      Vector v = new RandomAccessSparseVector(50);
+      for (int j = 0; j < 3; j++) {
+        v.set(rand.nextInt(50), 1.0 + rand.nextDouble());
+      }
+      sparse.add(new Weighted<Vector>(v, 1 + rand.nextInt(3)));
+    }
+    Centers init = new Centers(sparse.get(0).thing(), sparse.get(1).thing(),
+        sparse.get(2).thing());
+    List<List<Weighted<Vector>>> assigned = Lists.newArrayList();
+    for (int c = 0; c < init.size(); c++) {
+      assigned.add(Lists.<Weighted<Vector>>newArrayList());
+    }
+    for (Weighted<Vector> wv : sparse) {
+      assigned.get(init.indexOfClosest(wv.thing())).add(wv);
+    }
+    Centers updated = new LloydsUpdateStrategy(1).update(sparse, init);
+    for (List<Weighted<Vector>> cluster : assigned) {
+      assertEquals(0.0, updated.getDistanceSquared(lloyds.centroid(cluster)), 1.0e-12);
+    }
+  }
+  
+  @Test
+  public void testKdTreeMatchesLloyds() throws Exception {
+    PackedPoints packed = PackedPoints.of(blobs(3000, 3, 8));
+    KdTreeUpdateStrategy kdTree = new KdTreeUpdateStrategy(30, Convergence.NEVER);
+    for (int k : new int[] { 1, 5, 12 }) {
+      Centers init = KMeansInitStrategy.PLUS_PLUS.apply(packed, k, rand);
+      Centers expected = new LloydsUpdateStrategy(30, null, Convergence.NEVER)
+          .update(packed, init);
+      Centers actual = kdTree.update(packed, init);
+      assertEquals(expected.size(), actual.size());
+      for (Vector c : expected) {
+        assertEquals(0.0, actual.getDistanceSquared(c), 1.0e-12);
+      }
+    }
+  }
+  
+  @Test
+  public void testMergedCentersAreDeduplicated() throws Exception {
+    // The first center's points average out (with rounding) to exactly where the empty second
+    // center is, and the third center then moves away from (1.0), so that the first center picks
+    // it up. A stale copy of the merged center would pick up the (0.1) points again afterwards.
+    List<Weighted<Vector>> merging = ImmutableList.of(
+        wpoint(0.1), wpoint(0.1), wpoint(0.1), wpoint(1.0), wpoint(3.0));
+    Centers init = new Centers(vec(0.1), vec(0.30000000000000004 / 3.0), vec(0.9));
+    Centers expected = new Centers(vec((0.30000000000000004 + 1.0) / 4.0), vec(3.0));
+    for (KMeansUpdateStrategy strategy : ImmutableList.of(lloyds, new ElkanUpdateStrategy(10),
+        new YinyangUpdateStrategy(10), new KdTreeUpdateStrategy(10))) {
+      assertEquals(strategy.getClass().getSimpleName(), expected, strategy.update(merging, init));
+    }
+  }
+  
+  @Test
+  public void testEvaluation() throws Exception {
+    List<Weighted<Vector>> blobs = blobs(2000, 4, 4);
+    PackedPoints packed = PackedPoints.of(blobs);
+    List<Centers> test = Lists.newArrayList();
+    List<Centers> train = Lists.newArrayList();
+    for (int k : new int[] { 2, 4, 8 }) {
+      Centers init = KMeansInitStrategy.PLUS_PLUS.apply(packed, k, rand);
+      test.add(lloyds.update(packed, init));
+      train.add(lloyds.update(PackedPoints.of(blobs.subList(0, 1000)), init));
+    }
+    KMeansEvaluation serial = new KMeansEvaluation(test, blobs, train, null);
+    ExecutorService four = Executors.newFixedThreadPool(4);
+    try {
+      KMeansEvaluation parallel = new KMeansEvaluation(test, packed, train, null, four);
+      assertEquals(serial.getPredictionStrengths(), parallel.getPredictionStrengths());
+      assertEquals(serial.getTestCenterCosts(), parallel.getTestCenterCosts());
+      assertEquals(serial.getStablePoints(), parallel.getStablePoints());
+    } finally {
+      four.shutdown();
+    }
+    KMeansEvaluation same = new KMeansEvaluation(test, packed, test, null, null);
+    for (int i = 0; i < test.size(); i++) {
+      assertEquals(1.0, same.getStableClusters().get(i), 0.0);
+      assertEquals(1.0, same.getStablePoints().get(i), 0.0);
+      assertEquals(same.getTestCenterCosts().get(i), same.getTrainCosts().get(i));
+    }
+  }
+  
+  private List<Weighted<Vector>> blobs(int numPoints, int dimensions, int numBlobs) {
+    List<Weighted<Vector>> blobs = Lists.newArrayList();
+    for (int i = 0; i < numPoints; i++) {
+      double[] v = new double[dimensions];
+      int blob = i % numBlobs;
+      for (int j = 0; j < dimensions; j++) {
+        v[j] = 4.0 * ((blob >> j) & 1) + rand.nextGaussian();
+      }
+      blobs.add(new Weighted<Vector>(vec(v), 1 + rand.nextInt(3)));
+    }
+    return blobs;
+  }
 }
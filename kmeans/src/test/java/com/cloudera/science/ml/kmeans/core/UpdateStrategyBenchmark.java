@@ -0,0 +1,125 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.kmeans.core;
+
+import java.util.List;
+import java.util.Random;
+
+import org.apache.mahout.math.Vector;
+
+import com.cloudera.science.ml.core.vectors.Centers;
+import com.cloudera.science.ml.core.vectors.Vectors;
+import com.cloudera.science.ml.core.vectors.Weighted;
+import com.google.common.collect.Lists;
+
+/**
+ * Compares the running time and the size of the bounds of the Lloyd's, Elkan and Yinyang
+ * update strategies over a range of values of K. It is not run as part of the tests; run
+ * it from the test classpath with
+ *
+ * <pre>
+ * java com.cloudera.science.ml.kmeans.core.UpdateStrategyBenchmark
+ *     [numPoints] [dimension] [k,k,...] [numIterations] [strategy,strategy,...]
+ * </pre>
+ *
+ * which defaults to 10000 points in 10 dimensions, K of 100, 500, 1000, 2000 and 5000, 50
+ * iterations, and all three strategies. Elkan needs about 8 * (N * K + K * K) bytes for its
+ * bounds, so K=5000 needs a heap of at least 1GB.
+ */
+public final class UpdateStrategyBenchmark {
+
+  private static final int NUM_BLOBS = 20;
+
+  private UpdateStrategyBenchmark() {
+  }
+
+  public static void main(String[] args) {
+    int numPoints = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+    int dimension = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+    String ks = args.length > 2 ? args[2] : "100,500,1000,2000,5000";
+    int numIterations = args.length > 3 ? Integer.parseInt(args[3]) : 50;
+    String strategies = args.length > 4 ? args[4] : "LLOYDS,ELKAN,YINYANG";
+
+    PackedPoints points = PackedPoints.of(blobs(numPoints, dimension, new Random(1729L)));
+    // Warms up the JIT on a small K before anything is timed
+    Centers warmup = KMeansInitStrategy.PLUS_PLUS.apply(points, 10, new Random(17L));
+    for (String name : strategies.split(",")) {
+      newStrategy(name, numIterations).update(points, warmup);
+    }
+
+    System.out.println("K\tstrategy\tseconds\tboundsMB\tsameAsLloyds");
+    for (String k : ks.split(",")) {
+      int numClusters = Integer.parseInt(k);
+      Centers init = KMeansInitStrategy.PLUS_PLUS.apply(points, numClusters, new Random(17L));
+      Centers lloyds = null;
+      for (String name : strategies.split(",")) {
+        KMeansUpdateStrategy strategy = newStrategy(name, numIterations);
+        String seconds;
+        Centers centers = null;
+        try {
+          long start = System.nanoTime();
+          centers = strategy.update(points, init);
+          seconds = String.format("%.2f", (System.nanoTime() - start) / 1.0e9);
+        } catch (OutOfMemoryError e) {
+          seconds = "OOM";
+        }
+        if (strategy.getClass() == LloydsUpdateStrategy.class) {
+          lloyds = centers;
+        }
+        System.out.println(String.format("%d\t%s\t%s\t%.1f\t%s", numClusters, name, seconds,
+            boundsBytes(name, numPoints, numClusters) / 1.0e6,
+            lloyds == null || centers == null ? "-" : lloyds.equals(centers)));
+      }
+    }
+  }
+
+  private static KMeansUpdateStrategy newStrategy(String name, int numIterations) {
+    if ("LLOYDS".equals(name)) {
+      return new LloydsUpdateStrategy(numIterations);
+    } else if ("ELKAN".equals(name)) {
+      return new ElkanUpdateStrategy(numIterations);
+    } else if ("YINYANG".equals(name)) {
+      return new YinyangUpdateStrategy(numIterations);
+    }
+    throw new IllegalArgumentException("Unknown update strategy: " + name);
+  }
+
+  /**
+   * Returns the size of the per-point and per-center bounds that the given strategy keeps
+   * between iterations, which is what dominates its memory use for large K.
+   */
+  private static long boundsBytes(String name, long n, long k) {
+    if ("ELKAN".equals(name)) {
+      return 8L * (n + n * k + k * k + 2 * k);
+    } else if ("YINYANG".equals(name)) {
+      long t = Math.max(1, k / YinyangUpdateStrategy.CENTERS_PER_GROUP);
+      return 8L * (n + n * t + k + t);
+    }
+    return 0L;
+  }
+
+  private static List<Weighted<Vector>> blobs(int n, int dimension, Random r) {
+    List<Weighted<Vector>> points = Lists.newArrayListWithCapacity(n);
+    for (int i = 0; i < n; i++) {
+      int blob = i % NUM_BLOBS;
+      double[] v = new double[dimension];
+      for (int j = 0; j < dimension; j++) {
+        v[j] = 3 * ((blob * 31 + j * 7) % 5) + r.nextGaussian();
+      }
+      points.add(new Weighted<Vector>(Vectors.of(v), 1 + r.nextInt(3)));
+    }
+    return points;
+  }
+}
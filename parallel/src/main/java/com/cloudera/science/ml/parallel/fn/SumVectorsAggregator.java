@@ -14,9 +14,12 @@
  */
 package com.cloudera.science.ml.parallel.fn;
 
+import java.util.Iterator;
+
 import org.apache.crunch.Aggregator;
 import org.apache.crunch.Pair;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.mahout.math.DenseVector;
 import org.apache.mahout.math.Vector;
 
 import com.google.common.collect.ImmutableList;
@@ -24,10 +27,14 @@ import com.google.common.collect.ImmutableList;
 /**
  * An aggregator that handles the common operation of summing up a large number
  * of {@code Vector} objects and their counts so that they may be averaged.
+ *
+ * <p>The sum is accumulated in place in a primitive array, so no intermediate vectors are
+ * created no matter how many values are added, and it is always returned as a
+ * {@code DenseVector}.
  */
 public class SumVectorsAggregator<V extends Vector> implements Aggregator<Pair<V, Long>> {
 
-  private transient Vector sum;
+  private transient double[] sum;
   private long count;
   
   @Override
@@ -43,15 +50,26 @@ public class SumVectorsAggregator<V extends Vector> implements Aggregator<Pair<V
 
   @Override
   public Iterable<Pair<V, Long>> results() {
-    return ImmutableList.of(Pair.of((V) sum, count));
+    Vector v = sum == null ? null : new DenseVector(sum, true);
+    return ImmutableList.of(Pair.of((V) v, count));
   }
 
   @Override
   public void update(Pair<V, Long> in) {
+    Vector v = in.first();
     if (sum == null) {
-      sum = in.first().clone();
+      sum = new double[v.size()];
+    }
+    if (v.isDense()) {
+      for (int i = 0; i < sum.length; i++) {
+        sum[i] += v.getQuick(i);
+      }
     } else {
-      sum = sum.plus(in.first());
+      Iterator<Vector.Element> iter = v.iterateNonZero();
+      while (iter.hasNext()) {
+        Vector.Element e = iter.next();
+        sum[e.index()] += e.get();
+      }
     }
     count += in.second();
   }
@@ -15,18 +15,24 @@
 package com.cloudera.science.ml.parallel.types;
 
 
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
 import org.apache.avro.Schema;
 import org.apache.avro.generic.GenericData;
 import org.apache.crunch.MapFn;
 import org.apache.crunch.types.avro.AvroType;
 import org.apache.crunch.types.avro.Avros;
+import org.apache.mahout.math.DenseVector;
 import org.apache.mahout.math.NamedVector;
+import org.apache.mahout.math.RandomAccessSparseVector;
 import org.apache.mahout.math.Vector;
 
 import com.cloudera.science.ml.avro.MLVector;
 import com.cloudera.science.ml.core.records.Record;
 import com.cloudera.science.ml.core.records.avro.AvroRecord;
 import com.cloudera.science.ml.core.vectors.VectorConvert;
+import com.google.common.base.Charsets;
 
 
 /**
@@ -45,6 +51,17 @@ public final class MLAvros {
     return namedVector;
   }
   
+  /**
+   * Returns an {@code AvroType<Vector>} that stores each vector as a single block of bytes
+   * that contains its values as packed doubles, instead of as an {@code MLVector} record with
+   * a list of boxed values. It is much cheaper to read and write than {@link #vector()}, so it
+   * is meant for intermediate data that is read over and over again, like the input to an
+   * iterative algorithm. The names of {@code NamedVector}s are kept.
+   */
+  public static AvroType<Vector> packedVector() {
+    return packedVector;
+  }
+  
   public static AvroType<Record> record(Schema schema) {
     return Avros.derived(Record.class,
         new MapFn<GenericData.Record, Record>() {
@@ -92,6 +109,88 @@ public final class MLAvros {
       },
       Avros.specifics(MLVector.class));
   
+  private static final byte SPARSE = 1;
+  private static final byte NAMED = 2;
+  
+  private static final AvroType<Vector> packedVector = Avros.derived(Vector.class,
+      new MapFn<ByteBuffer, Vector>() {
+        @Override
+        public Vector map(ByteBuffer buf) {
+          ByteBuffer in = buf.duplicate();
+          byte flags = in.get();
+          String name = null;
+          if ((flags & NAMED) != 0) {
+            byte[] utf8 = new byte[in.getInt()];
+            in.get(utf8);
+            name = new String(utf8, Charsets.UTF_8);
+          }
+          int size = in.getInt();
+          Vector vec;
+          if ((flags & SPARSE) != 0) {
+            int numNonZeros = in.getInt();
+            vec = new RandomAccessSparseVector(size, numNonZeros);
+            for (int i = 0; i < numNonZeros; i++) {
+              int index = in.getInt();
+              vec.setQuick(index, in.getDouble());
+            }
+          } else {
+            double[] values = new double[size];
+            in.asDoubleBuffer().get(values);
+            vec = new DenseVector(values, true);
+          }
+          return name == null ? vec : new NamedVector(vec, name);
+        }
+      },
+      new MapFn<Vector, ByteBuffer>() {
+        @Override
+        public ByteBuffer map(Vector vec) {
+          byte flags = 0;
+          byte[] utf8 = null;
+          if (vec instanceof NamedVector) {
+            flags |= NAMED;
+            utf8 = ((NamedVector) vec).getName().getBytes(Charsets.UTF_8);
+            vec = ((NamedVector) vec).getDelegate();
+          }
+          int length = 5 + (utf8 == null ? 0 : 4 + utf8.length);
+          int numNonZeros = 0;
+          if (vec.isDense()) {
+            length += 8 * vec.size();
+          } else {
+            flags |= SPARSE;
+            numNonZeros = vec.getNumNondefaultElements();
+            length += 4 + 12 * numNonZeros;
+          }
+          ByteBuffer out = ByteBuffer.allocate(length);
+          out.put(flags);
+          if (utf8 != null) {
+            out.putInt(utf8.length);
+            out.put(utf8);
+          }
+          out.putInt(vec.size());
+          if (vec.isDense()) {
+            for (int i = 0; i < vec.size(); i++) {
+              out.putDouble(vec.getQuick(i));
+            }
+          } else {
+            // Non-default elements may still be zero, so count what is actually written
+            int countAt = out.position();
+            out.putInt(0);
+            int count = 0;
+            Iterator<Vector.Element> iter = vec.iterateNonZero();
+            while (iter.hasNext() && count < numNonZeros) {
+              Vector.Element e = iter.next();
+              out.putInt(e.index());
+              out.putDouble(e.get());
+              count++;
+            }
+            out.putInt(countAt, count);
+          }
+          out.flip();
+          return out;
+        }
+      },
+      Avros.bytes());
+  
   static {
     Avros.register(Vector.class, vector);
     Avros.register(NamedVector.class, namedVector);
@@ -0,0 +1,64 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.parallel.types;
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.crunch.MapFn;
+import org.apache.crunch.types.avro.AvroType;
+import org.apache.mahout.math.NamedVector;
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.junit.Test;
+
+import com.cloudera.science.ml.core.vectors.Vectors;
+
+public class MLAvrosTest {
+
+  private static Vector roundTrip(Vector vec) {
+    AvroType<Vector> ptype = MLAvros.packedVector();
+    MapFn<Object, Vector> in = ptype.getInputMapFn();
+    MapFn<Vector, Object> out = ptype.getOutputMapFn();
+    in.initialize();
+    out.initialize();
+    return in.map(out.map(vec));
+  }
+
+  @Test
+  public void testPackedDense() throws Exception {
+    Vector v = Vectors.of(1.0, -2.5, 0.0, 3.0);
+    Vector packed = roundTrip(v);
+    assertEquals(v, packed);
+    assertEquals(true, packed.isDense());
+  }
+
+  @Test
+  public void testPackedSparse() throws Exception {
+    Vector v = new RandomAccessSparseVector(100);
+    v.setQuick(3, 1.5);
+    v.setQuick(97, -4.0);
+    Vector packed = roundTrip(v);
+    assertEquals(v, packed);
+    assertEquals(false, packed.isDense());
+  }
+
+  @Test
+  public void testPackedNamed() throws Exception {
+    Vector v = new NamedVector(Vectors.of(1.0, 2.0), "point-é");
+    Vector packed = roundTrip(v);
+    assertEquals("point-é", ((NamedVector) packed).getName());
+    assertEquals(v, packed);
+  }
+}